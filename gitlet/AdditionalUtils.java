@@ -2,13 +2,14 @@ package gitlet;
 
 
 import static gitlet.Utils.join;
-import static gitlet.Utils.writeObject;
+import static gitlet.Utils.readContents;
 
 import java.io.File;
-import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 
 import static gitlet.Repository.*;
@@ -16,13 +17,13 @@ import static gitlet.Repository.*;
 public class AdditionalUtils {
 
     /**
-     * Print out Message and exits with error code -1.
+     * End the current command with Message. Main prints it and exits with code 0; the daemon
+     * prints it and keeps running.
      *
      * @param message - message to print
      */
     public static void exit(String message) {
-        System.out.println(message);
-        System.exit(0);
+        throw new GitletException(message);
     }
 
     /**
@@ -53,25 +54,91 @@ public class AdditionalUtils {
         return returnFile;
     }
 
-    public static void saveObject(File file, Serializable object) {
-        File dir = file.getParentFile();
-        if (!dir.exists()) {
-            dir.mkdir();
+    public static File getTreeFile(String treeSha1) {
+        String dir = getShaDir(treeSha1);
+        String fileName = getShaFileName(treeSha1);
+        return join(TREEFOLDER, dir, fileName);
+    }
+
+    /**
+     * Save PAYLOAD into FILE as a compressed object whose header records TYPE, through the
+     * current WriteBatch.
+     */
+    public static void saveObject(File file, String type, byte[] payload) {
+        File temp = WriteBatch.tempFile();
+        LooseObject.write(temp, type, payload);
+        WriteBatch.publish(temp, file);
+    }
+
+    /**
+     * Read back the payload of object ID saved by saveObject into the loose FILE, inflating it
+     * from the loose file or from a pack. For a file written before objects were compressed this
+     * is the whole file.
+     *
+     * @return the payload, or null if the object is stored nowhere
+     */
+    public static byte[] loadPayload(String id, File file, String type) {
+        File stored = WriteBatch.resolve(file);
+        if (stored.exists() && LooseObject.isLegacy(stored)) {
+            return readContents(stored);
+        }
+        try (LooseObject object = LooseObject.find(id, file, type)) {
+            return object == null ? null : object.getStream().readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        writeObject(file, object);
     }
 
 
-    private static final SimpleDateFormat FORMATTER = new SimpleDateFormat(
-        "EEE MMM d HH:mm:ss yyyy Z");
+    /**
+     * size of the buffer used when streaming file contents
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
 
-    public static Date parseTimestamp(String timestamp) {
+    /**
+     * Get a fresh SHA-1 MessageDigest.
+     */
+    public static MessageDigest newSha1Digest() {
         try {
-            return FORMATTER.parse(timestamp);
-        } catch (ParseException e) {
-            throw new IllegalArgumentException("Invalid date format", e);
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
         }
     }
 
+    /**
+     * Format a digest as a lowercase hexadecimal string, the same way Utils.sha1 does.
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder result = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Copy IN to OUT through a fixed-size buffer, feeding every byte into MD as well. OUT may be
+     * null when only the digest is needed.
+     *
+     * @return number of bytes copied
+     */
+    public static long copyAndDigest(InputStream in, OutputStream out, MessageDigest md)
+        throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            md.update(buffer, 0, n);
+            if (out != null) {
+                out.write(buffer, 0, n);
+            }
+            total += n;
+        }
+        return total;
+    }
+
+
 
 }
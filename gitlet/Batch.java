@@ -0,0 +1,131 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.AdditionalUtils.*;
+
+/**
+ * Runs a script of gitlet commands in one process. Each line holds one command with the same
+ * arguments Main takes, separated by blanks; an argument with blanks is written in single or
+ * double quotes, and inside double quotes a backslash escapes the next character. Blank lines and
+ * lines starting with # are skipped.
+ *
+ * <p>Between commands the staging area is kept in memory and written to the index only at the
+ * end, or where the script says "checkpoint"; refs are cached but still written on every change.
+ * A command that fails prints its message and the script goes on, as if each command had been
+ * run on its own.
+ *
+ * @author Jialin Shi
+ */
+class Batch {
+
+    /**
+     * script line that writes the staging area to the index
+     */
+    private static final String CHECKPOINT = "checkpoint";
+
+    /**
+     * Run the script in the file SOURCE, or on standard input if SOURCE is "-".
+     */
+    static void run(String source) {
+        try (BufferedReader script = open(source)) {
+            StagingArea.deferWrites();
+            Repository.cacheRefs(true);
+            try {
+                String line;
+                while ((line = script.readLine()) != null) {
+                    runLine(line);
+                }
+            } finally {
+                StagingArea.stopDeferring();
+                Repository.cacheRefs(false);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static BufferedReader open(String source) throws IOException {
+        if (source.equals("-")) {
+            return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        File file = new File(source);
+        if (!file.isFile()) {
+            exit("Batch file does not exist.");
+        }
+        return Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    private static void runLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return;
+        }
+        try {
+            String[] args = split(trimmed);
+            if (args.length == 1 && args[0].equals(CHECKPOINT)) {
+                StagingArea.flushStaging();
+                return;
+            }
+            if (args[0].equals("batch") || args[0].equals("daemon")) {
+                exit("Cannot run " + args[0] + " inside a batch.");
+            }
+            Main.run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    /**
+     * Split a script LINE into arguments.
+     */
+    static String[] split(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote == '"' && i + 1 < line.length()) {
+                    i += 1;
+                    arg.append(line.charAt(i));
+                } else {
+                    arg.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '\\' && i + 1 < line.length()) {
+                    i += 1;
+                    arg.append(line.charAt(i));
+                } else {
+                    arg.append(c);
+                }
+            }
+        }
+        if (quote != 0) {
+            exit("Unterminated quote in batch line: " + line);
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+}
@@ -1,101 +1,238 @@
 package gitlet;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 
 import static gitlet.Utils.*;
 import static gitlet.AdditionalUtils.*;
 
 /**
- * represent the content object
+ * represent the content object. A blob is addressed by its content only: the id is the SHA1 of a
+ * small "blob SIZE\0" header followed by the raw bytes, and the object file stores those bytes
+ * compressed (see LooseObject). The path a blob was staged from lives in the commit's tracked
+ * map, not in the blob.
+ *
+ * <p>A Blob is only a handle: contents are always streamed through a fixed-size buffer, so
+ * hashing, storing and restoring use the same amount of memory whatever the file size.
  *
  * @author Jialin Shi
  */
 
-public class Blob implements Serializable {
+public class Blob {
 
-    // Staged file - the source the blob needs to read.
-    private final File source;
+    /**
+     * header type tag of a blob object
+     */
+    static final String BLOB_TYPE = "blob";
+
+    /**
+     * whole contents of blobs read in this process, including those rebuilt from deltas
+     */
+    static final ObjectCache<byte[]> CONTENTS = new ObjectCache<>(32L << 20, b -> b.length);
 
     //private final String blobID based on content;
     private final String blobSHA1;
 
-    // the content stored in Blob.
-    private final byte[] content;
+    // Staged file the blob was hashed from, null for a blob read back from the store.
+    private final File source;
 
     // the file generated by BlobSHA1 - write
     private final File file;
 
     public Blob(File source) {
+        this(source, generateBlobSHA1(source));
+    }
+
+    /**
+     * a blob for SOURCE whose content is already known to hash to BLOBSHA1
+     */
+    public Blob(File source, String blobSHA1) {
         this.source = source;
-        String sourcePath = source.getPath();
-        content = readContents(source);
-        blobSHA1 = sha1(sourcePath, content);
-        file = getBlobFile(blobSHA1);
+        this.blobSHA1 = blobSHA1;
+        this.file = getBlobFile(blobSHA1);
+    }
+
+    private Blob(String blobSHA1) {
+        this.source = null;
+        this.blobSHA1 = blobSHA1;
+        this.file = getBlobFile(blobSHA1);
+    }
+
+    /**
+     * Stream SOURCE into OUT (which may be null) while digesting it behind a blob header.
+     *
+     * @return the blob id of the streamed content
+     */
+    private static String digestSource(File source, long size, OutputStream out) {
+        MessageDigest md = newSha1Digest();
+        md.update(LooseObject.header(BLOB_TYPE, size));
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            if (copyAndDigest(in, out, md) != size) {
+                throw error("File %s changed while it was being read.", source.getName());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest());
     }
 
     /**
-     * generate SHA1 based on content and file path
+     * generate SHA1 based on content only, so identical bytes share one blob
      */
     public static String generateBlobSHA1(File source) {
-        String sourcePath = source.getPath();
-        byte[] content = readContents(source);
-        String blobSHA1 = sha1(sourcePath, content);
-        return blobSHA1;
+        if (!source.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        return digestSource(source, source.length(), null);
     }
 
     /**
      * get saved Blob object from File
      */
     public static Blob fromFile(String blobSHA1) {
-        File blobFile = getBlobFile(blobSHA1);
-        return readObject(blobFile, Blob.class);
+        return new Blob(blobSHA1);
     }
 
     /**
-     * save Blob object into file
+     * Save this blob as a new version of a path whose previous version is BASEID (null for a new
+     * path). Small files are stored as a delta against the previous version when that is much
+     * smaller and the delta chain is not already MAX_DEPTH long; everything else is stored whole.
      */
-    public void saveBlob() {
-        saveObject(file, this);
+    public void saveBlob(String baseId) {
+        if (WriteBatch.exists(file) || PackFile.contains(blobSHA1)) {
+            return;
+        }
+        if (baseId == null || baseId.equals(blobSHA1) || source.length() > Delta.MAX_SIZE
+            || !saveDelta(baseId)) {
+            saveBlob();
+        }
     }
 
     /**
-     * get SHA1 of a Blob object
+     * try to store this blob as a delta against BASEID
+     *
+     * @return true if a delta was written
      */
-    public String getBlobSHA1() {
-        return blobSHA1;
+    private boolean saveDelta(String baseId) {
+        try {
+            if (Delta.depth(baseId) >= Delta.MAX_DEPTH) {
+                return false;
+            }
+            byte[] content = Files.readAllBytes(source.toPath());
+            if (!sha1(LooseObject.header(BLOB_TYPE, content.length), content).equals(blobSHA1)) {
+                throw error("File %s changed while it was being added.", source.getName());
+            }
+            byte[] payload = Delta.encode(baseId, Delta.contents(baseId), content);
+            if (payload == null) {
+                return false;
+            }
+            saveObject(file, Delta.DELTA_TYPE, payload);
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     /**
-     * get the path of object file
+     * save Blob object whole into file unless it is already stored loose or packed. The source
+     * is copied into a temporary file while it is digested again, and only published under its
+     * id if the content still matches.
      */
-    public File getFile() {
-        return file;
+    public void saveBlob() {
+        if (WriteBatch.exists(file) || PackFile.contains(blobSHA1)) {
+            return;
+        }
+        try {
+            File temp = WriteBatch.tempFile();
+            long size = source.length();
+            String copiedSHA1;
+            try (OutputStream out = LooseObject.create(temp, BLOB_TYPE, size)) {
+                copiedSHA1 = digestSource(source, size, out);
+            } catch (IllegalArgumentException | GitletException excp) {
+                temp.delete();
+                throw excp;
+            }
+            if (!copiedSHA1.equals(blobSHA1)) {
+                temp.delete();
+                throw error("File %s changed while it was being added.", source.getName());
+            }
+            WriteBatch.publish(temp, file);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     /**
-     * return blob content
+     * Save CONTENT whole as a blob unless it is already stored loose or packed.
+     *
+     * @return the blob id of CONTENT
      */
-    public String readBlobContentsAsString() {
-        return readContentsAsString(file);
+    static String save(byte[] content) {
+        String blobSHA1 = sha1(LooseObject.header(BLOB_TYPE, content.length), content);
+        File file = getBlobFile(blobSHA1);
+        if (!WriteBatch.exists(file) && !PackFile.contains(blobSHA1)) {
+            saveObject(file, BLOB_TYPE, content);
+        }
+        return blobSHA1;
     }
 
-    public String pullContentsAsString() {
-        return new String(content, StandardCharsets.UTF_8);
+    /**
+     * get SHA1 of a Blob object
+     */
+    public String getBlobSHA1() {
+        return blobSHA1;
     }
 
+    /**
+     * Open the stored content, positioned just after the header. The caller closes the stream.
+     */
+    public InputStream openContents() throws IOException {
+        byte[] cached = CONTENTS.get(blobSHA1);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        LooseObject object = LooseObject.find(blobSHA1, file, BLOB_TYPE);
+        if (object == null) {
+            throw error("Missing blob %s.", blobSHA1);
+        }
+        return object.getStream();
+    }
 
-    public String getContentsAsString() {
-        return new String(content, StandardCharsets.UTF_8);
+    /**
+     * Read the whole content, keeping it in CONTENTS for the next read.
+     */
+    public byte[] readContents() throws IOException {
+        byte[] content;
+        try (InputStream in = openContents()) {
+            content = in.readAllBytes();
+        }
+        CONTENTS.put(blobSHA1, content);
+        return content;
     }
 
     /**
-     * write byte[] to File
+     * stream the stored content into the working file TARGET
      */
-    public void writeBlobContentsToSource() {
-        writeContents(source, content);
+    public void writeContentsTo(File target) {
+        if (target.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        File dir = target.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        try (InputStream in = openContents();
+             OutputStream out = Files.newOutputStream(target.toPath())) {
+            in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
 }
@@ -0,0 +1,54 @@
+package gitlet;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Thin client for Gitlet: sends its arguments to the Daemon serving the repository in the working
+ * directory and reproduces the command's output and exit code. Without a running daemon, or
+ * for a batch read from standard input, the command is run in this process, exactly as by Main.
+ *
+ * @author Jialin Shi
+ */
+public class Client {
+
+    /**
+     * Usage: java gitlet.Client ARGS, with the same ARGS as gitlet.Main.
+     */
+    public static void main(String[] args) {
+        boolean readsStdin = args.length == 2 && args[0].equals("batch") && args[1].equals("-");
+        Integer code = readsStdin ? null : sendToDaemon(args);
+        if (code == null) {
+            Main.main(args);
+            return;
+        }
+        System.exit(code);
+    }
+
+    /**
+     * Run ARGS on the daemon.
+     *
+     * @return the exit code, or null if no daemon is listening
+     */
+    private static Integer sendToDaemon(String[] args) {
+        if (!Repository.DAEMON_SOCKET.exists()) {
+            return null;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(Repository.DAEMON_SOCKET.toPath()));
+        } catch (IOException excp) {
+            return null;
+        }
+        try (channel) {
+            Daemon.writeArgs(Channels.newOutputStream(channel), args);
+            return Daemon.readResult(Channels.newInputStream(channel), System.out, System.err);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
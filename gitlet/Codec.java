@@ -0,0 +1,171 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * Helpers for the binary formats of commits and the index: unsigned LEB128 varints, strings as a
+ * varint length followed by UTF-8 bytes, and ids as their raw 20 bytes. Values are written to a
+ * DataOutputStream and read back from a ByteBuffer.
+ *
+ * <p>Also reads the Java serialization those files used before, for repositories written by
+ * older versions. Those streams carry gitlet classes whose serialVersionUID was never fixed, so
+ * the local class is trusted as long as it serializes the same fields.
+ *
+ * @author Jialin Shi
+ */
+class Codec {
+
+    /**
+     * first byte of a Java serialization stream
+     */
+    static final int LEGACY_FIRST_BYTE = 0xAC;
+
+    static final int ID_BYTES = 20;
+
+    static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw error("Corrupt varint.");
+            }
+            b = in.get() & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Read a varint that counts elements or bytes still to come in IN.
+     */
+    static int readCount(ByteBuffer in) {
+        long count = readVarint(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return (int) count;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readCount(in);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+            StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    static void writeId(DataOutputStream out, String id) throws IOException {
+        byte[] raw = PackFile.toRawId(id);
+        if (raw == null) {
+            throw error("Invalid id %s.", id);
+        }
+        out.write(raw);
+    }
+
+    static String readId(ByteBuffer in) {
+        byte[] raw = new byte[ID_BYTES];
+        in.get(raw);
+        return toHex(raw);
+    }
+
+    /**
+     * Tell whether PAYLOAD is a Java serialization stream.
+     */
+    static boolean isLegacy(byte[] payload) {
+        return payload.length > 0 && (payload[0] & 0xff) == LEGACY_FIRST_BYTE;
+    }
+
+    /**
+     * Read the Java serialized object in PAYLOAD. RENAMED maps the names of classes that no longer
+     * exist in their serialized form to local classes with the same serialized fields. A class
+     * saved with fields no local class has ends the command with an error.
+     */
+    static <T> T readLegacy(byte[] payload, Class<T> expectedClass,
+        Map<String, Class<?>> renamed) {
+        try (ObjectInputStream in = new LegacyInputStream(new ByteArrayInputStream(payload),
+            renamed)) {
+            return expectedClass.cast(in.readObject());
+        } catch (InvalidClassException excp) {
+            throw error("Unsupported format of %s saved by an older version.", excp.classname);
+        } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * An ObjectInputStream that reads gitlet classes through their local descriptors, whatever
+     * serialVersionUID they were written with.
+     */
+    private static class LegacyInputStream extends ObjectInputStream {
+
+        private final Map<String, Class<?>> renamed;
+
+        LegacyInputStream(InputStream in, Map<String, Class<?>> renamed) throws IOException {
+            super(in);
+            this.renamed = renamed;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+            throws IOException, ClassNotFoundException {
+            ObjectStreamClass stored = super.readClassDescriptor();
+            Class<?> local = renamed.get(stored.getName());
+            if (local == null && stored.getName().startsWith("gitlet.")) {
+                local = Class.forName(stored.getName(), false, Codec.class.getClassLoader());
+            }
+            ObjectStreamClass current = local == null ? null : ObjectStreamClass.lookup(local);
+            return current == null || !sameFields(stored, current) ? stored : current;
+        }
+    }
+
+    /**
+     * Tell whether A and B serialize the same fields, so that a stream written with one can be
+     * read with the other.
+     */
+    private static boolean sameFields(ObjectStreamClass a, ObjectStreamClass b) {
+        ObjectStreamField[] fieldsA = a.getFields();
+        ObjectStreamField[] fieldsB = b.getFields();
+        if (fieldsA.length != fieldsB.length) {
+            return false;
+        }
+        for (int i = 0; i < fieldsA.length; i += 1) {
+            if (!fieldsA[i].getName().equals(fieldsB[i].getName())
+                || fieldsA[i].getTypeCode() != fieldsB[i].getTypeCode()
+                || !Objects.equals(fieldsA[i].getTypeString(), fieldsB[i].getTypeString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,10 +3,16 @@ package gitlet;
 
 import static gitlet.Utils.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -20,10 +26,37 @@ import static gitlet.AdditionalUtils.*;
 /**
  * Represents a gitlet commit object.
  *
+ * <p>The payload of a commit object is the version byte ENCODING_VERSION, the number of parents
+ * as a varint, the raw parent ids, the raw root tree id, then the timestamp and the message as
+ * varint-length UTF-8 strings. Commits saved before held a Java serialized Commit instead; they
+ * are still read, and gc rewrites them. Those of the first versions, which tracked a map of paths
+ * instead of a tree, are rewritten by Migration.
+ *
  * @author Jialin Shi
  */
-public class Commit implements Serializable {
+public class Commit {
+
+    /**
+     * header type tag of a commit object
+     */
+    static final String COMMIT_TYPE = "commit";
+
+    /**
+     * first byte of the payload of a commit object in the current encoding
+     */
+    static final int ENCODING_VERSION = 1;
+
+    /**
+     * thread-safe format of commit timestamps
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern(
+        "EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
 
+    /**
+     * commits already read in this process; commits never change once written
+     */
+    private static final ObjectCache<Commit> CACHE = new ObjectCache<>(8L << 20,
+        Commit::weight);
 
     /**
      * sha1 ID of commits
@@ -44,26 +77,19 @@ public class Commit implements Serializable {
      */
     private final List<String> parent;
     /**
-     * Blob map The tracked files Map with blob file path as key and BlobSHA1 id as value.
+     * id of the root Tree holding the snapshot of this commit
      */
-    private final Map<String, String> tracked;
+    private final String tree;
 
     /**
-     * The file of this instance with the path generated from SHA1 id For example, a file path:
-     * CWD/.gitlet/commits/66/xxed78g
+     * Construct commit with message, parent and the id of its root tree
      */
-    private final File file;
-
-    /**
-     * Construct commit with message and parent
-     */
-    public Commit(String message, List<String> parent, Map<String, String> trackedFilesMap) {
+    public Commit(String message, List<String> parent, String tree) {
         this.timestamp = getTimestamp(new Date());
         this.message = message;
         this.parent = parent;
-        this.tracked = trackedFilesMap;
+        this.tree = tree;
         this.commitSHA1 = generateSHA1();
-        this.file = getObjectFile(commitSHA1);
     }
 
     /**
@@ -73,31 +99,44 @@ public class Commit implements Serializable {
         this.timestamp = getTimestamp(new Date(0));
         this.message = "initial commit";
         this.parent = new ArrayList<>();
-        this.tracked = new HashMap<>();
+        this.tree = Tree.empty();
         this.commitSHA1 = generateSHA1();
-        this.file = getObjectFile(commitSHA1);
+    }
+
+    /**
+     * a commit read back from storage, or saved again under the id it already has
+     */
+    Commit(String commitSHA1, String timestamp, String message, List<String> parent,
+        String tree) {
+        this.commitSHA1 = commitSHA1;
+        this.timestamp = timestamp;
+        this.message = message;
+        this.parent = parent;
+        this.tree = tree;
     }
 
     private String getTimestamp(Date date) {
-        DateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
-        return dateFormat.format(date);
+        return TIMESTAMP_FORMAT.format(date.toInstant().atZone(ZoneId.systemDefault()));
     }
 
     /**
-     * Generate a SHA1 id from timestamp, message, parents Array and tracked files Map.
+     * Generate a SHA1 id from timestamp, message, parents Array and root tree id.
      *
      * @return SHA1 id
      */
     private String generateSHA1() {
-        return sha1(timestamp, message, parent.toString(), tracked.toString());
+        return sha1(timestamp, message, parent.toString(), tree);
     }
 
     public String getMessage() {
         return this.message;
     }
 
-    public String pullTimestamp() {
-        return timestamp;
+    /**
+     * the commit time in seconds since the epoch
+     */
+    public long getEpochSeconds() {
+        return ZonedDateTime.parse(timestamp, TIMESTAMP_FORMAT).toEpochSecond();
     }
 
     public String getCommitSHA1() {
@@ -109,32 +148,131 @@ public class Commit implements Serializable {
     }
 
     /**
-     * return Blob map<filepath, BlobSHA1>
+     * return the id of the root tree
+     */
+    public String getTree() {
+        return tree;
+    }
+
+    /**
+     * return a new Blob map<filepath, BlobSHA1> of the whole snapshot. This reads every tree of
+     * the commit; prefer getBlobId for single paths.
      */
     public Map<String, String> getTracked() {
+        Map<String, String> tracked = new HashMap<>();
+        for (Map.Entry<String, String> entry : Tree.flatten(tree).entrySet()) {
+            tracked.put(Repository.absolutePath(entry.getKey()), entry.getValue());
+        }
         return tracked;
     }
 
+    /**
+     * get the blob id tracked at filePath, reading only the trees along that path
+     *
+     * @return the blob id, or null if the file is not tracked
+     */
+    public String getBlobId(String filePath) {
+        String relativePath = Repository.relativePath(filePath);
+        if (relativePath == null) {
+            return null;
+        }
+        return Tree.lookup(tree, relativePath);
+    }
+
+    /**
+     * rough number of bytes this commit takes in memory
+     */
+    private long weight() {
+        return 256 + 2L * (message.length() + timestamp.length()) + 96L * parent.size();
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + message.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(ENCODING_VERSION);
+            Codec.writeVarint(out, parent.size());
+            for (String id : parent) {
+                Codec.writeId(out, id);
+            }
+            Codec.writeId(out, tree);
+            Codec.writeString(out, timestamp);
+            Codec.writeString(out, message);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode the commit with ID from PAYLOAD, in the current encoding or the legacy one.
+     */
+    private static Commit decode(String id, byte[] payload) {
+        if (Codec.isLegacy(payload)) {
+            return Codec.readLegacy(payload, Legacy.class,
+                Map.of(Commit.class.getName(), Legacy.class)).toCommit();
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            if (in.get() != ENCODING_VERSION) {
+                throw error("Unsupported encoding of commit %s.", id);
+            }
+            int parents = Codec.readCount(in);
+            List<String> parent = new ArrayList<>(parents);
+            for (int i = 0; i < parents; i += 1) {
+                parent.add(Codec.readId(in));
+            }
+            String tree = Codec.readId(in);
+            String timestamp = Codec.readString(in);
+            String message = Codec.readString(in);
+            return new Commit(id, timestamp, message, parent, tree);
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupt commit %s.", id);
+        }
+    }
+
     /**
      * Save a commit to a file for future use.
      */
     public void saveCommit() {
-        saveObject(file, this);
+        saveObject(getObjectFile(commitSHA1), COMMIT_TYPE, encode());
+        CACHE.put(commitSHA1, this);
+    }
+
+    /**
+     * Tell whether a commit with this id is already stored, loose or packed.
+     */
+    boolean isSaved() {
+        return WriteBatch.exists(getObjectFile(commitSHA1)) || PackFile.contains(commitSHA1);
     }
 
     /**
-     * Reads in and deserializes a commit from a file with commitSHA1 in CommitFolder.
+     * Reads in and decodes a commit with commitSHA1 from CommitFolder or from a pack.
      *
      * @param commitSHA1 of commit to load
-     * @return commit read from file
+     * @return commit read from file, or null if there is no such commit
      */
     public static Commit fromFile(String commitSHA1) {
-        File commitFile = getObjectFile(commitSHA1);
-        if (commitFile.exists()) {
-            return readObject(commitFile, Commit.class);
-        } else {
+        if (commitSHA1.length() < 2) {
             return null;
         }
+        return CACHE.get(commitSHA1, id -> {
+            byte[] payload = loadPayload(id, getObjectFile(id), COMMIT_TYPE);
+            return payload == null ? null : decode(id, payload);
+        });
+    }
+
+    /**
+     * Save commit ID again, loose and in the current encoding, if it is stored in the legacy one.
+     *
+     * @return whether the commit was rewritten
+     */
+    static boolean migrate(String id) {
+        byte[] payload = loadPayload(id, getObjectFile(id), COMMIT_TYPE);
+        if (payload == null || !Codec.isLegacy(payload)) {
+            return false;
+        }
+        decode(id, payload).saveCommit();
+        return true;
     }
 
     /**
@@ -145,20 +283,14 @@ public class Commit implements Serializable {
      */
 
     public boolean restoreBlob(String filePath) {
-        String blobSHA1 = tracked.get(filePath);
+        String blobSHA1 = getBlobId(filePath);
         if (blobSHA1 == null) { // means no such blob
             return false;
         }
-        Blob.fromFile(blobSHA1).writeBlobContentsToSource();
+        Blob.fromFile(blobSHA1).writeContentsTo(new File(filePath));
         return true;
     }
 
-    public void restoreAllTracked() {
-        for (String blobID : tracked.values()) {
-            Blob.fromFile(blobID).writeBlobContentsToSource();
-        }
-    }
-
 
     /**
      * print sha1, parent sha1, date, message
@@ -176,6 +308,22 @@ public class Commit implements Serializable {
         log.append(message + "\n");
         return log.toString();
     }
+
+    /**
+     * The fields of a commit saved with Java serialization, under the name gitlet.Commit.
+     */
+    private static class Legacy implements Serializable {
+        private String commitSHA1;
+        private String timestamp;
+        private String message;
+        private List<String> parent;
+        private String tree;
+        private File file;
+
+        Commit toCommit() {
+            return new Commit(commitSHA1, timestamp, message, parent, tree);
+        }
+    }
 }
 
 
@@ -0,0 +1,470 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * The commit-graph side file, .gitlet/commit-graph, which lets history be walked without reading
+ * any commit object. After a 12-byte header (magic, number of commits, number of sorted commits)
+ * comes a lookup table of 4-byte record positions sorted by commit id, covering the first
+ * "sorted" records, and then one fixed-width record per commit:
+ *
+ * <pre>
+ *   20 bytes  raw commit id
+ *    4 bytes  index of the first parent, or -1
+ *    4 bytes  index of the second parent, or -1
+ *    4 bytes  generation number: 1 for a root, otherwise 1 + the largest parent generation
+ *    8 bytes  commit time in epoch seconds
+ * </pre>
+ *
+ * <p>Records are in topological order, every parent before its children, so a new commit is
+ * appended in place, synced, and the count in the header is written and synced last. A commit id
+ * is found by binary search of the lookup table in the mapped file, then by a scan of the
+ * records appended since the table was written; once there are TAIL_LIMIT of those the file is
+ * written again with all records in the table. A repository whose file is missing, in an older
+ * format or does not know some commit gets the file rebuilt from the commit objects once.
+ *
+ * @author Jialin Shi
+ */
+class CommitGraph {
+
+    private static final int MAGIC = 0x47434732; // "GCG2"
+
+    private static final int HEADER = 12;
+
+    /**
+     * records appended after the lookup table before the file is written again
+     */
+    private static final int TAIL_LIMIT = 256;
+
+    private static final int ID_BYTES = 20;
+
+    static final int RECORD = ID_BYTES + 4 + 4 + 4 + 8;
+
+    /**
+     * value of a missing parent index
+     */
+    static final int NONE = -1;
+
+    /**
+     * colors painted on commits while computing merge bases
+     */
+    private static final byte PARENT1 = 1;
+    private static final byte PARENT2 = 2;
+    private static final byte STALE = 4;
+    private static final byte RESULT = 8;
+
+    /**
+     * the graph loaded in this run, dropped whenever the file is written
+     */
+    private static CommitGraph loaded;
+
+    private final MappedByteBuffer buffer;
+
+    private final int count;
+
+    /**
+     * number of records covered by the lookup table
+     */
+    private final int sorted;
+
+    /**
+     * offset of the first record
+     */
+    private final int recordStart;
+
+    private CommitGraph(MappedByteBuffer buffer, int count, int sorted) {
+        this.buffer = buffer;
+        this.count = count;
+        this.sorted = sorted;
+        this.recordStart = HEADER + sorted * 4;
+    }
+
+    private static File graphFile() {
+        return Repository.COMMIT_GRAPH;
+    }
+
+    /**
+     * Get the commit graph, rebuilding it first if it is missing or unreadable.
+     */
+    static CommitGraph get() {
+        if (loaded == null) {
+            loaded = map();
+            if (loaded == null) {
+                rebuild();
+                loaded = map();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Get the commit graph, rebuilt first unless it knows every one of IDS.
+     */
+    static CommitGraph get(String... ids) {
+        CommitGraph graph = get();
+        for (String id : ids) {
+            if (graph.indexOf(id) == NONE) {
+                rebuild();
+                return get();
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Forget the loaded graph, so that the next use maps the file again.
+     */
+    static void reload() {
+        loaded = null;
+    }
+
+    private static CommitGraph map() {
+        File file = graphFile();
+        if (!file.isFile() || file.length() < HEADER) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+            int count = buffer.getInt(4);
+            int sorted = buffer.getInt(8);
+            if (buffer.getInt(0) != MAGIC || sorted < 0 || count < sorted
+                || HEADER + sorted * 4L + (long) count * RECORD > buffer.capacity()) {
+                return null;
+            }
+            return new CommitGraph(buffer, count, sorted);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int base(int index) {
+        return recordStart + index * RECORD;
+    }
+
+    /**
+     * the position of commit ID in the graph, or NONE
+     */
+    int indexOf(String id) {
+        byte[] raw = PackFile.toRawId(id);
+        if (raw == null) {
+            return NONE;
+        }
+        int low = 0;
+        int high = sorted - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int index = buffer.getInt(HEADER + middle * 4);
+            int comparison = compareId(index, raw);
+            if (comparison == 0) {
+                return index;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        for (int index = sorted; index < count; index += 1) {
+            if (compareId(index, raw) == 0) {
+                return index;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Compare the id of the commit at INDEX with the raw id RAW, as unsigned bytes.
+     */
+    private int compareId(int index, byte[] raw) {
+        int base = base(index);
+        for (int i = 0; i < ID_BYTES; i += 1) {
+            int comparison = Integer.compare(buffer.get(base + i) & 0xff, raw[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    String id(int index) {
+        byte[] raw = new byte[ID_BYTES];
+        buffer.get(base(index), raw);
+        return toHex(raw);
+    }
+
+    /**
+     * the parent positions of the commit at INDEX, first parent first
+     */
+    int[] parents(int index) {
+        int first = buffer.getInt(base(index) + ID_BYTES);
+        int second = buffer.getInt(base(index) + ID_BYTES + 4);
+        if (first == NONE) {
+            return new int[0];
+        }
+        return second == NONE ? new int[]{first} : new int[]{first, second};
+    }
+
+    int generation(int index) {
+        return buffer.getInt(base(index) + ID_BYTES + 8);
+    }
+
+    long time(int index) {
+        return buffer.getLong(base(index) + ID_BYTES + 12);
+    }
+
+    /**
+     * newest first: higher generation, then later commit time, then later position
+     */
+    private Comparator<Integer> newestFirst() {
+        return Comparator.comparingInt(this::generation).thenComparingLong(this::time)
+            .thenComparingInt(i -> i).reversed();
+    }
+
+    /**
+     * Find the best common ancestors of the commits at positions A and B: the common ancestors
+     * that are not ancestors of another common ancestor. Criss-cross histories can have several.
+     * Commits are visited newest first by generation number and painted with one bit for each
+     * side that reaches them; a commit reached from both sides is a candidate and everything
+     * below it is marked stale, and the walk stops once only stale commits are left to visit.
+     *
+     * @return the positions of the merge bases, newest first
+     */
+    List<Integer> mergeBases(int a, int b) {
+        List<Integer> candidates = paintDownToCommon(a, b);
+        List<Integer> bases = new ArrayList<>();
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && isAncestor(candidate, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                bases.add(candidate);
+            }
+        }
+        bases.sort(newestFirst());
+        return bases;
+    }
+
+    private List<Integer> paintDownToCommon(int a, int b) {
+        byte[] flags = new byte[count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(newestFirst());
+        List<Integer> result = new ArrayList<>();
+        flags[a] |= PARENT1;
+        flags[b] |= PARENT2;
+        queue.add(a);
+        queue.add(b);
+        while (hasNonStale(queue, flags)) {
+            int commit = queue.poll();
+            int color = flags[commit] & (PARENT1 | PARENT2 | STALE);
+            if (color == (PARENT1 | PARENT2)) {
+                if ((flags[commit] & RESULT) == 0) {
+                    flags[commit] |= RESULT;
+                    result.add(commit);
+                }
+                color |= STALE;
+            }
+            for (int parent : parents(commit)) {
+                if ((flags[parent] & color) == color) {
+                    continue;
+                }
+                flags[parent] |= color;
+                queue.add(parent);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasNonStale(PriorityQueue<Integer> queue, byte[] flags) {
+        for (int commit : queue) {
+            if ((flags[commit] & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tell whether the commit at ANCESTOR is reachable from the commit at DESCENDANT. Commits
+     * with a generation not above that of ANCESTOR are not descended into.
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        int cutoff = generation(ancestor);
+        Deque<Integer> stack = new ArrayDeque<>();
+        boolean[] seen = new boolean[count];
+        stack.push(descendant);
+        while (!stack.isEmpty()) {
+            int commit = stack.pop();
+            if (commit == ancestor) {
+                return true;
+            }
+            if (seen[commit] || generation(commit) <= cutoff) {
+                continue;
+            }
+            seen[commit] = true;
+            for (int parent : parents(commit)) {
+                stack.push(parent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append COMMIT, whose parents must already be in the graph; the graph is rebuilt otherwise.
+     */
+    static void add(Commit commit) {
+        CommitGraph graph = get();
+        if (graph.indexOf(commit.getCommitSHA1()) != NONE) {
+            return;
+        }
+        List<String> parents = commit.getParent();
+        int[] parentIndices = new int[parents.size()];
+        int generation = 1;
+        for (int i = 0; i < parentIndices.length; i += 1) {
+            parentIndices[i] = graph.indexOf(parents.get(i));
+            if (parentIndices[i] == NONE) {
+                rebuild();
+                return;
+            }
+            generation = Math.max(generation, graph.generation(parentIndices[i]) + 1);
+        }
+        ByteBuffer record = record(commit.getCommitSHA1(), parentIndices, generation,
+            commit.getEpochSeconds());
+        int count = graph.count;
+        loaded = null;
+        if (count - graph.sorted >= TAIL_LIMIT) {
+            byte[][] records = new byte[count + 1][];
+            for (int i = 0; i < count; i += 1) {
+                records[i] = new byte[RECORD];
+                graph.buffer.get(graph.base(i), records[i]);
+            }
+            records[count] = record.array();
+            write(records);
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(graphFile(), "rw")) {
+            file.seek(graph.base(count));
+            file.write(record.array());
+            file.getChannel().force(false);
+            file.seek(4);
+            file.writeInt(count + 1);
+            file.getChannel().force(false);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write the graph file with RECORDS, in that order, all of them in the lookup table.
+     */
+    private static void write(byte[][] records) {
+        Integer[] order = new Integer[records.length];
+        for (int i = 0; i < order.length; i += 1) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(records[a], 0, ID_BYTES,
+            records[b], 0, ID_BYTES));
+        File temp = WriteBatch.tempFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(temp.toPath()), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(records.length);
+            out.writeInt(records.length);
+            for (int index : order) {
+                out.writeInt(index);
+            }
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        loaded = null;
+        WriteBatch.replace(temp, graphFile());
+    }
+
+    private static ByteBuffer record(String id, int[] parents, int generation, long time) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        record.put(PackFile.toRawId(id));
+        record.putInt(parents.length > 0 ? parents[0] : NONE);
+        record.putInt(parents.length > 1 ? parents[1] : NONE);
+        record.putInt(generation);
+        record.putLong(time);
+        return record;
+    }
+
+    /**
+     * Write the graph again from every commit object, loose or packed.
+     */
+    static void rebuild() {
+        Map<String, Commit> commits = new HashMap<>();
+        for (String id : Repository.getAllCommitId()) {
+            commits.put(id, Commit.fromFile(id));
+        }
+        Map<String, Integer> positions = new HashMap<>();
+        int[] generations = new int[commits.size()];
+        byte[][] records = new byte[commits.size()][];
+        for (String root : commits.keySet()) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (positions.containsKey(id)) {
+                    stack.pop();
+                    continue;
+                }
+                List<String> parents = commits.get(id).getParent();
+                boolean ready = true;
+                for (String parent : parents) {
+                    if (!positions.containsKey(parent)) {
+                        stack.push(parent);
+                        ready = false;
+                    }
+                }
+                if (!ready) {
+                    continue;
+                }
+                stack.pop();
+                int[] parentIndices = new int[parents.size()];
+                int generation = 1;
+                for (int i = 0; i < parentIndices.length; i += 1) {
+                    parentIndices[i] = positions.get(parents.get(i));
+                    generation = Math.max(generation, generations[parentIndices[i]] + 1);
+                }
+                int index = positions.size();
+                positions.put(id, index);
+                generations[index] = generation;
+                records[index] = record(id, parentIndices, generation,
+                    commits.get(id).getEpochSeconds()).array();
+            }
+        }
+        write(records);
+    }
+}
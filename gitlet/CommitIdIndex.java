@@ -0,0 +1,164 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * The sorted index of commit ids, .gitlet/commit-ids, used to resolve abbreviated ids. After a
+ * 12-byte header (magic, number of journal records indexed, number of ids) it holds the distinct
+ * raw 20-byte ids of the first records of the commit journal in ascending order, so every id
+ * starting with a prefix is found by one binary search. Commits made since the index was written
+ * are read from the tail of the journal; once that tail grows past MAX_TAIL records the index is
+ * written again.
+ *
+ * @author Jialin Shi
+ */
+class CommitIdIndex {
+
+    private static final int MAGIC = 0x47434932; // "GCI2"
+
+    private static final int HEADER = 12;
+
+    private static final int ID_BYTES = 20;
+
+    /**
+     * journal records allowed after the indexed ones before the index is rewritten
+     */
+    private static final long MAX_TAIL = 256;
+
+    private static File indexFile() {
+        return Repository.COMMIT_IDS;
+    }
+
+    /**
+     * Find every commit whose id starts with the hex PREFIX.
+     *
+     * @return the full ids, sorted
+     */
+    static List<String> resolve(String prefix) {
+        prefix = prefix.toLowerCase();
+        List<String> matches = new ArrayList<>();
+        if (!prefix.matches("[0-9a-f]{1,40}")) {
+            return matches;
+        }
+        MappedByteBuffer index = map();
+        long journalSize = CommitJournal.size();
+        if (index == null || index.getInt(4) > journalSize
+            || journalSize - index.getInt(4) > MAX_TAIL) {
+            rebuild();
+            index = map();
+        }
+        int records = index.getInt(4);
+        int count = index.getInt(8);
+        byte[] low = PackFile.toRawId(pad(prefix));
+        int first = lowerBound(index, count, low);
+        byte[] raw = new byte[ID_BYTES];
+        for (int i = first; i < count; i += 1) {
+            index.get(HEADER + i * ID_BYTES, raw);
+            String id = toHex(raw);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if (matches.isEmpty() || !matches.get(matches.size() - 1).equals(id)) {
+                matches.add(id);
+            }
+        }
+        String finalPrefix = prefix;
+        CommitJournal.forEachFrom(records, id -> {
+            if (id.startsWith(finalPrefix) && !matches.contains(id)) {
+                matches.add(id);
+            }
+        });
+        matches.sort(null);
+        return matches;
+    }
+
+    /**
+     * the smallest full id starting with PREFIX
+     */
+    private static String pad(String prefix) {
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < UID_LENGTH) {
+            padded.append('0');
+        }
+        return padded.toString();
+    }
+
+    /**
+     * the position of the first id not below RAW
+     */
+    private static int lowerBound(MappedByteBuffer index, int count, byte[] raw) {
+        byte[] probe = new byte[ID_BYTES];
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            index.get(HEADER + mid * ID_BYTES, probe);
+            if (Arrays.compareUnsigned(probe, raw) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static MappedByteBuffer map() {
+        File file = indexFile();
+        if (!file.isFile() || file.length() < HEADER) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+            int count = index.getInt(8);
+            if (index.getInt(0) != MAGIC || count < 0 || count > index.getInt(4)
+                || HEADER + (long) count * ID_BYTES != index.capacity()) {
+                return null;
+            }
+            return index;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write the index again from the whole commit journal.
+     */
+    static void rebuild() {
+        List<String> journal = CommitJournal.ids();
+        List<String> ids = new ArrayList<>(new TreeSet<>(journal));
+        File temp = new File(indexFile().getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(temp.toPath()), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(journal.size());
+            out.writeInt(ids.size());
+            for (String id : ids) {
+                out.write(PackFile.toRawId(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), indexFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static gitlet.AdditionalUtils.*;
+
+/**
+ * The append-only journal of commit ids, .gitlet/commit-journal. Every commit made in the
+ * repository appends its raw 20-byte id, so the file lists all commits in the order they were
+ * made and can be read as a stream without scanning the object folders. A record cut short by a
+ * crash is ignored.
+ *
+ * <p>A repository created before the journal existed has none; it is written once from the loose
+ * and packed commits, in id order, the first time it is needed.
+ *
+ * @author Jialin Shi
+ */
+class CommitJournal {
+
+    private static final int ID_BYTES = 20;
+
+    private static File journalFile() {
+        return Repository.COMMIT_JOURNAL;
+    }
+
+    /**
+     * Append the commit id ID, whose commit is already saved, to the journal.
+     */
+    static void add(String id) {
+        if (!journalFile().isFile()) {
+            rebuild();
+            return;
+        }
+        try (OutputStream out = Files.newOutputStream(journalFile().toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(PackFile.toRawId(id));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Pass every commit id, oldest first, to ACTION while reading the journal.
+     */
+    static void forEach(Consumer<String> action) {
+        forEachFrom(0, action);
+    }
+
+    /**
+     * number of complete records in the journal
+     */
+    static long size() {
+        if (!journalFile().isFile()) {
+            rebuild();
+        }
+        return journalFile().length() / ID_BYTES;
+    }
+
+    /**
+     * Pass the commit ids from record START on, oldest first, to ACTION.
+     */
+    static void forEachFrom(long start, Consumer<String> action) {
+        if (!journalFile().isFile()) {
+            rebuild();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(journalFile().toPath()), BUFFER_SIZE))) {
+            in.skipNBytes(start * ID_BYTES);
+            byte[] raw = new byte[ID_BYTES];
+            while (true) {
+                try {
+                    in.readFully(raw);
+                } catch (EOFException excp) {
+                    return;
+                }
+                action.accept(toHex(raw));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * every commit id in the journal, oldest first
+     */
+    static List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        forEach(ids::add);
+        return ids;
+    }
+
+    /**
+     * Write the journal from the loose and packed commits, in id order.
+     */
+    private static void rebuild() {
+        String[] ids = Repository.scanCommitIds();
+        Arrays.sort(ids);
+        File temp = new File(journalFile().getPath() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            for (String id : ids) {
+                out.write(PackFile.toRawId(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), journalFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
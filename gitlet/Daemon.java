@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static gitlet.Utils.*;
+
+/**
+ * A resident gitlet process serving the repository in its working directory over the Unix
+ * domain socket .gitlet/daemon.sock, so commands sent by Client skip JVM startup and find the
+ * content-addressed caches (commits, trees, delta bases) already warm. Commands are run one at a
+ * time through Main.run with stdout and stderr captured.
+ *
+ * <p>A request is the number of arguments followed by each argument, all as length-prefixed
+ * UTF-8 strings. The reply is the exit code, then the bytes written to stdout and to stderr, each
+ * prefixed by its length. Sending "daemon stop" shuts the daemon down.
+ *
+ * @author Jialin Shi
+ */
+class Daemon {
+
+    /**
+     * exit code of a command that ended with an uncaught exception, as the JVM would give it
+     */
+    static final int CRASH_EXIT_CODE = 1;
+
+    /**
+     * Serve commands until told to stop.
+     */
+    static void serve() {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(
+            Repository.DAEMON_SOCKET.toPath());
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            Files.deleteIfExists(address.getPath());
+            server.bind(address);
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    running = handle(client);
+                } catch (IOException excp) {
+                    // a client that went away mid request or reply; keep serving the others
+                    System.err.println("gitlet daemon: " + excp);
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Could not run the daemon: %s", excp.getMessage());
+        } finally {
+            Repository.DAEMON_SOCKET.delete();
+        }
+    }
+
+    /**
+     * Run the command sent by CLIENT and send back its result.
+     *
+     * @return false if the daemon was asked to stop
+     */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+        String[] args = readArgs(in);
+        if (args.length > 0 && args[0].equals("daemon")) {
+            boolean stop = args.length == 2 && args[1].equals("stop");
+            if (stop) {
+                // gone before the client hears back, so the next command runs on its own
+                Repository.DAEMON_SOCKET.delete();
+            }
+            byte[] reply = stop ? new byte[0]
+                : "A daemon is already running.\n".getBytes(StandardCharsets.UTF_8);
+            writeResult(out, 0, reply, new byte[0]);
+            return !stop;
+        }
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        PrintStream savedOut = System.out;
+        PrintStream savedErr = System.err;
+        int code;
+        try {
+            code = run(args, new PrintStream(stdout, true), new PrintStream(stderr, true));
+        } finally {
+            System.setOut(savedOut);
+            System.setErr(savedErr);
+        }
+        writeResult(out, code, stdout.toByteArray(), stderr.toByteArray());
+        return true;
+    }
+
+    /**
+     * Run ARGS as Main.main would, printing to OUT and ERR.
+     *
+     * @return the exit code
+     */
+    private static int run(String[] args, PrintStream out, PrintStream err) {
+        System.setOut(out);
+        System.setErr(err);
+        refreshCaches();
+        try {
+            Main.run(args);
+            return 0;
+        } catch (GitletException excp) {
+            out.println(excp.getMessage());
+            return 0;
+        } catch (RuntimeException | Error excp) {
+            err.print("Exception in thread \"main\" ");
+            excp.printStackTrace(err);
+            return CRASH_EXIT_CODE;
+        } finally {
+            out.flush();
+            err.flush();
+        }
+    }
+
+    /**
+     * Drop what another process may have changed since the last command: the list of packs and
+     * the mapped commit graph. Objects are immutable, so their caches are kept.
+     */
+    private static void refreshCaches() {
+        PackFile.reload();
+        CommitGraph.reload();
+    }
+
+    static void writeArgs(OutputStream raw, String[] args) throws IOException {
+        DataOutputStream out = new DataOutputStream(raw);
+        out.writeInt(args.length);
+        for (String arg : args) {
+            writeBytes(out, arg.getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    private static String[] readArgs(DataInputStream in) throws IOException {
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+        }
+        return args;
+    }
+
+    private static void writeResult(DataOutputStream out, int code, byte[] stdout,
+        byte[] stderr) throws IOException {
+        out.writeInt(code);
+        writeBytes(out, stdout);
+        writeBytes(out, stderr);
+        out.flush();
+    }
+
+    /**
+     * Read a reply from RAW, copy its output to OUT and ERR and return its exit code.
+     */
+    static int readResult(InputStream raw, OutputStream out, OutputStream err)
+        throws IOException {
+        DataInputStream in = new DataInputStream(raw);
+        int code = in.readInt();
+        out.write(readBytes(in));
+        out.flush();
+        err.write(readBytes(in));
+        err.flush();
+        return code;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        return in.readNBytes(in.readInt());
+    }
+}
@@ -0,0 +1,300 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * Delta encoding of a blob against a base blob, used for successive versions of the same path.
+ *
+ * <p>A delta object is stored with type "delta"; its payload is the raw 20-byte id of the base
+ * blob followed by the varint sizes of the base and of the result and a list of instructions. An
+ * instruction byte with the high bit set copies a varint length of bytes from a varint offset in
+ * the base; any other non-zero byte N inserts the N literal bytes that follow it. Chains are at
+ * most MAX_DEPTH long, and reconstructed contents are kept in the blob content cache so that
+ * checking out a chain does not rebuild the same bases again.
+ *
+ * @author Jialin Shi
+ */
+class Delta {
+
+    /**
+     * header type tag of a delta object
+     */
+    static final String DELTA_TYPE = "delta";
+
+    /**
+     * longest chain of deltas allowed before a blob is stored whole again
+     */
+    static final int MAX_DEPTH = 10;
+
+    /**
+     * files larger than this are always stored whole, so deltas never need unbounded memory
+     */
+    static final long MAX_SIZE = 16L << 20;
+
+    /**
+     * block size used to index the base
+     */
+    private static final int BLOCK = 16;
+
+    /**
+     * multiplier of the rolling block hash
+     */
+    private static final int PRIME = 31;
+
+    /**
+     * longest literal run of one insert instruction
+     */
+    private static final int MAX_INSERT = 0x7f;
+
+    private static final int COPY = 0x80;
+
+    private static final int ID_BYTES = 20;
+
+    /**
+     * Encode TARGET as a delta against BASE, whose blob id is BASEID.
+     *
+     * @return the delta payload, or null if it would not be much smaller than TARGET
+     */
+    static byte[] encode(String baseId, byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(PackFile.toRawId(baseId));
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        writeInstructions(out, base, target);
+        if (out.size() >= target.length / 2) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private static int blockHash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            h = h * PRIME + (data[i] & 0xff);
+        }
+        return h;
+    }
+
+    private static void writeInstructions(ByteArrayOutputStream out, byte[] base,
+        byte[] target) {
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(blockHash(base, i), i);
+        }
+        int outFactor = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            outFactor *= PRIME;
+        }
+        int insertStart = 0;
+        int p = 0;
+        int h = target.length >= BLOCK ? blockHash(target, 0) : 0;
+        while (p + BLOCK <= target.length) {
+            Integer candidate = blocks.get(h);
+            if (candidate != null && Arrays.equals(base, candidate, candidate + BLOCK,
+                target, p, p + BLOCK)) {
+                int offset = candidate;
+                while (p > insertStart && offset > 0 && base[offset - 1] == target[p - 1]) {
+                    offset -= 1;
+                    p -= 1;
+                }
+                int length = 0;
+                while (offset + length < base.length && p + length < target.length
+                    && base[offset + length] == target[p + length]) {
+                    length += 1;
+                }
+                writeInsert(out, target, insertStart, p);
+                out.write(COPY);
+                writeVarint(out, offset);
+                writeVarint(out, length);
+                p += length;
+                insertStart = p;
+                if (p + BLOCK <= target.length) {
+                    h = blockHash(target, p);
+                }
+            } else {
+                if (p + BLOCK < target.length) {
+                    h = (h - (target[p] & 0xff) * outFactor) * PRIME
+                        + (target[p + BLOCK] & 0xff);
+                }
+                p += 1;
+            }
+        }
+        writeInsert(out, target, insertStart, target.length);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from,
+        int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(target, from, n);
+            from += n;
+        }
+    }
+
+    /**
+     * Rebuild the content described by the delta PAYLOAD (which starts with the base id)
+     * against BASE.
+     */
+    static byte[] apply(byte[] base, byte[] payload) {
+        int[] pos = {ID_BYTES};
+        long baseSize = readVarint(payload, pos);
+        long resultSize = readVarint(payload, pos);
+        if (baseSize != base.length) {
+            throw error("Delta does not match its base.");
+        }
+        byte[] result = new byte[(int) resultSize];
+        int r = 0;
+        while (pos[0] < payload.length) {
+            int cmd = payload[pos[0]++] & 0xff;
+            if ((cmd & COPY) != 0) {
+                int offset = (int) readVarint(payload, pos);
+                int length = (int) readVarint(payload, pos);
+                System.arraycopy(base, offset, result, r, length);
+                r += length;
+            } else if (cmd != 0) {
+                System.arraycopy(payload, pos[0], result, r, cmd);
+                pos[0] += cmd;
+                r += cmd;
+            } else {
+                throw error("Corrupt delta.");
+            }
+        }
+        if (r != result.length) {
+            throw error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Turn a stored delta object into the blob object it describes.
+     */
+    static LooseObject resolve(String id, LooseObject stored) throws IOException {
+        byte[] payload;
+        try (stored) {
+            payload = stored.getStream().readAllBytes();
+        }
+        byte[] content = apply(contents(baseIdOf(payload)), payload);
+        Blob.CONTENTS.put(id, content);
+        return LooseObject.ofBytes(Blob.BLOB_TYPE, content);
+    }
+
+    private static String baseIdOf(byte[] payload) {
+        return toHex(Arrays.copyOf(payload, ID_BYTES));
+    }
+
+    /**
+     * the full contents of blob ID, from the cache when possible
+     */
+    static byte[] contents(String id) throws IOException {
+        return Blob.fromFile(id).readContents();
+    }
+
+    /**
+     * Get the base id of blob ID if it is stored as a delta, or null if it is stored whole.
+     */
+    static String baseOf(String id) throws IOException {
+        try (LooseObject stored = LooseObject.findStored(id, getBlobFile(id))) {
+            if (stored == null || !stored.getType().equals(DELTA_TYPE)) {
+                return null;
+            }
+            return baseIdOf(stored.getStream().readNBytes(ID_BYTES));
+        }
+    }
+
+    /**
+     * number of deltas that must be applied to rebuild blob ID
+     */
+    static int depth(String id) throws IOException {
+        int depth = 0;
+        for (String base = baseOf(id); base != null; base = baseOf(base)) {
+            depth += 1;
+        }
+        return depth;
+    }
+
+    /**
+     * Choose which whole blobs to store as deltas when packing. CANDIDATES maps a blob id to the
+     * id of the previous version of the same path; a candidate is skipped if it is already a
+     * delta, if either side is larger than MAX_SIZE, if the chain would exceed MAX_DEPTH or loop
+     * back on itself, or if the delta would not save much.
+     *
+     * @return delta payloads by blob id
+     */
+    static Map<String, byte[]> packDeltas(Map<String, String> candidates) throws IOException {
+        Map<String, String> chosen = new HashMap<>();
+        Map<String, byte[]> payloads = new TreeMap<>();
+        for (String id : new TreeSet<>(candidates.keySet())) {
+            String base = candidates.get(id);
+            if (baseOf(id) != null || chainReaches(base, id, chosen)) {
+                continue;
+            }
+            byte[] target = contentsIfSmall(id);
+            byte[] baseContent = contentsIfSmall(base);
+            if (target == null || baseContent == null) {
+                continue;
+            }
+            byte[] payload = encode(base, baseContent, target);
+            if (payload != null) {
+                chosen.put(id, base);
+                payloads.put(id, payload);
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Tell whether the chain starting at BASE, with the bases already CHOSEN, is too deep to
+     * extend or passes through ID.
+     */
+    private static boolean chainReaches(String base, String id, Map<String, String> chosen)
+        throws IOException {
+        int depth = 1;
+        for (String next = base; next != null; depth += 1) {
+            if (next.equals(id) || depth >= MAX_DEPTH) {
+                return true;
+            }
+            next = chosen.containsKey(next) ? chosen.get(next) : baseOf(next);
+        }
+        return false;
+    }
+
+    private static byte[] contentsIfSmall(String id) throws IOException {
+        try (LooseObject stored = LooseObject.findStored(id, getBlobFile(id))) {
+            if (stored == null || (stored.getType().equals(Blob.BLOB_TYPE)
+                && stored.getSize() > MAX_SIZE)) {
+                return null;
+            }
+        }
+        return contents(id);
+    }
+}
@@ -0,0 +1,577 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diffs. Files are split into lines, and the lines of all the files compared are interned
+ * to ints, so the diff itself compares ints. The diff is Myers' O(ND) algorithm in its linear
+ * space form, finding the middle snake of each range and splitting the range there.
+ *
+ * <p>To keep time predictable on large, very different files, lines that occur in only one of
+ * the two files are marked changed up front, since they can never be matched, and a range whose
+ * middle snake costs more than about the square root of the number of lines is split at the
+ * furthest point reached instead. The diff is then no longer always minimal, but it is always
+ * correct, and memory stays linear.
+ *
+ * @author Jialin Shi
+ */
+class Diff {
+
+    /**
+     * lines of context around each change in unified output
+     */
+    static final int CONTEXT = 3;
+
+    /**
+     * the lowest limit on the cost of one middle snake search
+     */
+    private static final int MIN_MAX_COST = 256;
+
+    /**
+     * bytes looked at to tell whether a file is binary, as git does
+     */
+    private static final int BINARY_PROBE = 8000;
+
+    /**
+     * The lines of one file. Each line keeps its newline, so a last line without one differs
+     * from the same text with one.
+     */
+    static final class Lines {
+
+        private final byte[] data;
+
+        /**
+         * starts[i] is the offset of line i, starts[size] the end of the data
+         */
+        private final int[] starts;
+
+        private final int size;
+
+        private Lines(byte[] data, int[] starts, int size) {
+            this.data = data;
+            this.starts = starts;
+            this.size = size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Tell whether line I is the last line and has no newline.
+         */
+        boolean missingNewline(int i) {
+            return i == size - 1 && data[starts[size] - 1] != '\n';
+        }
+
+        /**
+         * Write line I to OUT, ending it with a newline even if it has none.
+         */
+        void write(int i, PrintStream out) {
+            int length = starts[i + 1] - starts[i];
+            out.write(data, starts[i], length);
+            if (data[starts[i] + length - 1] != '\n') {
+                out.write('\n');
+            }
+        }
+
+        /**
+         * Write lines [FROM, TO) to OUT as they are.
+         */
+        void writeRaw(int from, int to, OutputStream out) throws IOException {
+            if (from < to) {
+                out.write(data, starts[from], starts[to] - starts[from]);
+            }
+        }
+
+        private boolean sameLine(int i, Lines other, int j) {
+            return Arrays.equals(data, starts[i], starts[i + 1], other.data, other.starts[j],
+                other.starts[j + 1]);
+        }
+
+        private int hash(int i) {
+            int hash = 1;
+            for (int k = starts[i]; k < starts[i + 1]; k += 1) {
+                hash = 31 * hash + data[k];
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Split DATA into lines.
+     */
+    static Lines split(byte[] data) {
+        int[] starts = new int[16];
+        int size = 0;
+        int start = 0;
+        while (start < data.length) {
+            if (size + 2 > starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[size] = start;
+            size += 1;
+            int newline = start;
+            while (newline < data.length && data[newline] != '\n') {
+                newline += 1;
+            }
+            start = newline + 1;
+        }
+        starts[size] = data.length;
+        return new Lines(data, starts, size);
+    }
+
+    /**
+     * Tell whether DATA looks binary: it has a NUL byte near the start.
+     */
+    static boolean isBinary(byte[] data) {
+        for (int i = 0; i < Math.min(data.length, BINARY_PROBE); i += 1) {
+            if (data[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Intern the lines of FILES: equal lines, in any of the files, get the same int.
+     *
+     * @return the ints of the lines of each file
+     */
+    static int[][] intern(Lines... files) {
+        Map<LineKey, Integer> ids = new HashMap<>();
+        int[][] interned = new int[files.length][];
+        for (int f = 0; f < files.length; f += 1) {
+            Lines lines = files[f];
+            interned[f] = new int[lines.size()];
+            for (int i = 0; i < lines.size(); i += 1) {
+                LineKey key = new LineKey(lines, i);
+                Integer id = ids.putIfAbsent(key, ids.size());
+                interned[f][i] = id == null ? ids.size() - 1 : id;
+            }
+        }
+        return interned;
+    }
+
+    /**
+     * A line of some file as a hash key, compared by content.
+     */
+    private static final class LineKey {
+        private final Lines lines;
+        private final int index;
+        private final int hash;
+
+        LineKey(Lines lines, int index) {
+            this.lines = lines;
+            this.index = index;
+            this.hash = lines.hash(index);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof LineKey)) {
+                return false;
+            }
+            LineKey key = (LineKey) other;
+            return hash == key.hash && lines.sameLine(index, key.lines, key.index);
+        }
+    }
+
+    /**
+     * One change: lines [aStart, aEnd) of the old file replaced by lines [bStart, bEnd) of the
+     * new one. Either range may be empty.
+     */
+    static final class Edit {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /**
+     * Diff the interned lines A and B.
+     *
+     * @return the changes, in order
+     */
+    static List<Edit> diff(int[] a, int[] b) {
+        boolean[] removed = new boolean[a.length];
+        boolean[] added = new boolean[b.length];
+        int[] keptA = discardUnique(a, b, removed);
+        int[] keptB = discardUnique(b, a, added);
+        int[] reducedA = new int[keptA.length];
+        for (int i = 0; i < keptA.length; i += 1) {
+            reducedA[i] = a[keptA[i]];
+        }
+        int[] reducedB = new int[keptB.length];
+        for (int j = 0; j < keptB.length; j += 1) {
+            reducedB[j] = b[keptB[j]];
+        }
+        Myers myers = new Myers(reducedA, reducedB);
+        myers.compare();
+        for (int i = 0; i < keptA.length; i += 1) {
+            removed[keptA[i]] = myers.removed[i];
+        }
+        for (int j = 0; j < keptB.length; j += 1) {
+            added[keptB[j]] = myers.added[j];
+        }
+        return edits(removed, added);
+    }
+
+    /**
+     * Mark in CHANGED the lines of A that occur nowhere in B.
+     *
+     * @return the indices of the other lines of A
+     */
+    private static int[] discardUnique(int[] a, int[] b, boolean[] changed) {
+        int max = 0;
+        for (int id : a) {
+            max = Math.max(max, id);
+        }
+        boolean[] inB = new boolean[max + 1];
+        for (int id : b) {
+            if (id <= max) {
+                inB[id] = true;
+            }
+        }
+        int[] kept = new int[a.length];
+        int count = 0;
+        for (int i = 0; i < a.length; i += 1) {
+            if (inB[a[i]]) {
+                kept[count] = i;
+                count += 1;
+            } else {
+                changed[i] = true;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    /**
+     * Turn the changed lines of both files into edits. The unchanged lines of the two files
+     * match one to one, in order.
+     */
+    private static List<Edit> edits(boolean[] removed, boolean[] added) {
+        List<Edit> edits = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < removed.length || j < added.length) {
+            if (i < removed.length && j < added.length && !removed[i] && !added[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < removed.length && removed[i]) {
+                i += 1;
+            }
+            while (j < added.length && added[j]) {
+                j += 1;
+            }
+            edits.add(new Edit(aStart, i, bStart, j));
+        }
+        return edits;
+    }
+
+    /**
+     * The linear space Myers diff of two int arrays, marking the changed elements of each.
+     */
+    private static final class Myers {
+        private final int[] a;
+        private final int[] b;
+        private final boolean[] removed;
+        private final boolean[] added;
+
+        /**
+         * furthest x reached on each diagonal k = x - y, forward and backward, offset by the
+         * length of b
+         */
+        private final int[] forward;
+        private final int[] backward;
+        private final int offset;
+
+        /**
+         * cost after which a middle snake search gives up and splits at its best point
+         */
+        private final int maxCost;
+
+        private int splitX;
+        private int splitY;
+
+        Myers(int[] a, int[] b) {
+            this.a = a;
+            this.b = b;
+            removed = new boolean[a.length];
+            added = new boolean[b.length];
+            offset = b.length + 1;
+            forward = new int[a.length + b.length + 3];
+            backward = new int[a.length + b.length + 3];
+            maxCost = Math.max(MIN_MAX_COST, (int) Math.sqrt(a.length + b.length + 3.0));
+        }
+
+        void compare() {
+            Deque<int[]> ranges = new ArrayDeque<>();
+            ranges.push(new int[] {0, a.length, 0, b.length});
+            while (!ranges.isEmpty()) {
+                int[] range = ranges.pop();
+                int aLo = range[0];
+                int aHi = range[1];
+                int bLo = range[2];
+                int bHi = range[3];
+                while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                    aLo += 1;
+                    bLo += 1;
+                }
+                while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                    aHi -= 1;
+                    bHi -= 1;
+                }
+                if (aLo == aHi || bLo == bHi) {
+                    Arrays.fill(removed, aLo, aHi, true);
+                    Arrays.fill(added, bLo, bHi, true);
+                    continue;
+                }
+                split(aLo, aHi, bLo, bHi);
+                if ((splitX == aLo && splitY == bLo) || (splitX == aHi && splitY == bHi)) {
+                    Arrays.fill(removed, aLo, aHi, true);
+                    Arrays.fill(added, bLo, bHi, true);
+                    continue;
+                }
+                ranges.push(new int[] {splitX, aHi, splitY, bHi});
+                ranges.push(new int[] {aLo, splitX, bLo, splitY});
+            }
+        }
+
+        /**
+         * Find where to split the range, setting splitX and splitY: the middle snake, searched
+         * from both ends at once, or the furthest point reached once the cost passes maxCost.
+         */
+        private void split(int aLo, int aHi, int bLo, int bHi) {
+            int dMin = aLo - bHi;
+            int dMax = aHi - bLo;
+            int fMid = aLo - bLo;
+            int bMid = aHi - bHi;
+            boolean odd = ((fMid - bMid) & 1) != 0;
+            int fMin = fMid;
+            int fMax = fMid;
+            int bMin = bMid;
+            int bMax = bMid;
+            forward[offset + fMid] = aLo;
+            backward[offset + bMid] = aHi;
+            for (int cost = 1;; cost += 1) {
+                if (fMin > dMin) {
+                    fMin -= 1;
+                    forward[offset + fMin - 1] = -1;
+                } else {
+                    fMin += 1;
+                }
+                if (fMax < dMax) {
+                    fMax += 1;
+                    forward[offset + fMax + 1] = -1;
+                } else {
+                    fMax -= 1;
+                }
+                for (int d = fMax; d >= fMin; d -= 2) {
+                    int x = forward[offset + d - 1] >= forward[offset + d + 1]
+                        ? forward[offset + d - 1] + 1 : forward[offset + d + 1];
+                    int y = x - d;
+                    while (x < aHi && y < bHi && a[x] == b[y]) {
+                        x += 1;
+                        y += 1;
+                    }
+                    forward[offset + d] = x;
+                    if (odd && bMin <= d && d <= bMax && backward[offset + d] <= x) {
+                        splitX = x;
+                        splitY = y;
+                        return;
+                    }
+                }
+                if (bMin > dMin) {
+                    bMin -= 1;
+                    backward[offset + bMin - 1] = Integer.MAX_VALUE;
+                } else {
+                    bMin += 1;
+                }
+                if (bMax < dMax) {
+                    bMax += 1;
+                    backward[offset + bMax + 1] = Integer.MAX_VALUE;
+                } else {
+                    bMax -= 1;
+                }
+                for (int d = bMax; d >= bMin; d -= 2) {
+                    int x = backward[offset + d - 1] < backward[offset + d + 1]
+                        ? backward[offset + d - 1] : backward[offset + d + 1] - 1;
+                    int y = x - d;
+                    while (x > aLo && y > bLo && a[x - 1] == b[y - 1]) {
+                        x -= 1;
+                        y -= 1;
+                    }
+                    backward[offset + d] = x;
+                    if (!odd && fMin <= d && d <= fMax && x <= forward[offset + d]) {
+                        splitX = x;
+                        splitY = y;
+                        return;
+                    }
+                }
+                if (cost >= maxCost) {
+                    splitAtBest(aLo, aHi, bLo, bHi, fMin, fMax, bMin, bMax);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Split at the point furthest from its end reached by either search.
+         */
+        private void splitAtBest(int aLo, int aHi, int bLo, int bHi, int fMin, int fMax,
+            int bMin, int bMax) {
+            int fBest = -1;
+            int fBestX = aLo;
+            for (int d = fMax; d >= fMin; d -= 2) {
+                int x = Math.min(forward[offset + d], aHi);
+                int y = x - d;
+                if (y > bHi) {
+                    x = bHi + d;
+                    y = bHi;
+                }
+                if (fBest < x + y) {
+                    fBest = x + y;
+                    fBestX = x;
+                }
+            }
+            int bBest = Integer.MAX_VALUE;
+            int bBestX = aHi;
+            for (int d = bMax; d >= bMin; d -= 2) {
+                int x = Math.max(aLo, backward[offset + d]);
+                int y = x - d;
+                if (y < bLo) {
+                    x = bLo + d;
+                    y = bLo;
+                }
+                if (x + y < bBest) {
+                    bBest = x + y;
+                    bBestX = x;
+                }
+            }
+            if ((aHi + bHi) - bBest < fBest - (aLo + bLo)) {
+                splitX = fBestX;
+                splitY = fBest - fBestX;
+            } else {
+                splitX = bBestX;
+                splitY = bBest - bBestX;
+            }
+        }
+    }
+
+    /**
+     * Write the diff of one file at PATH to OUT: a header, then the hunks, or a note if either
+     * side is binary. OLDID and NEWID are the blob ids of the two sides, null for a side that
+     * does not have the file, whose content is then empty.
+     */
+    static void writeFile(String path, String oldId, String newId, byte[] oldContent,
+        byte[] newContent, PrintStream out) {
+        out.print("diff --git a/" + path + " b/" + path + "\n");
+        if (oldId == null) {
+            out.print("new file\n");
+        } else if (newId == null) {
+            out.print("deleted file\n");
+        }
+        out.print("index " + abbreviate(oldId) + ".." + abbreviate(newId) + "\n");
+        String oldName = oldId == null ? "/dev/null" : "a/" + path;
+        String newName = newId == null ? "/dev/null" : "b/" + path;
+        if (isBinary(oldContent) || isBinary(newContent)) {
+            out.print("Binary files " + oldName + " and " + newName + " differ\n");
+            return;
+        }
+        out.print("--- " + oldName + "\n");
+        out.print("+++ " + newName + "\n");
+        Lines a = split(oldContent);
+        Lines b = split(newContent);
+        int[][] interned = intern(a, b);
+        writeHunks(a, b, diff(interned[0], interned[1]), out);
+    }
+
+    private static String abbreviate(String id) {
+        return id == null ? "0000000" : id.substring(0, 7);
+    }
+
+    /**
+     * Write the hunks of EDITS between A and B in unified format to OUT, with CONTEXT lines of
+     * context. Hunks closer than twice that are merged.
+     */
+    static void writeHunks(Lines a, Lines b, List<Edit> edits, PrintStream out) {
+        int first = 0;
+        while (first < edits.size()) {
+            int last = first;
+            while (last + 1 < edits.size()
+                && edits.get(last + 1).aStart - edits.get(last).aEnd <= 2 * CONTEXT) {
+                last += 1;
+            }
+            Edit head = edits.get(first);
+            Edit tail = edits.get(last);
+            int aFrom = Math.max(0, head.aStart - CONTEXT);
+            int aTo = Math.min(a.size(), tail.aEnd + CONTEXT);
+            int bFrom = head.bStart - (head.aStart - aFrom);
+            int bTo = tail.bEnd + (aTo - tail.aEnd);
+            out.print("@@ -" + range(aFrom, aTo - aFrom) + " +" + range(bFrom, bTo - bFrom)
+                + " @@\n");
+            int cursor = aFrom;
+            for (Edit edit : edits.subList(first, last + 1)) {
+                for (; cursor < edit.aStart; cursor += 1) {
+                    writeLine(' ', a, cursor, out);
+                }
+                for (int i = edit.aStart; i < edit.aEnd; i += 1) {
+                    writeLine('-', a, i, out);
+                }
+                for (int j = edit.bStart; j < edit.bEnd; j += 1) {
+                    writeLine('+', b, j, out);
+                }
+                cursor = edit.aEnd;
+            }
+            for (; cursor < aTo; cursor += 1) {
+                writeLine(' ', a, cursor, out);
+            }
+            first = last + 1;
+        }
+    }
+
+    /**
+     * a hunk range as git writes it: the line count is left out when it is 1, and an empty
+     * range starts at the line before it
+     */
+    private static String range(int from, int count) {
+        if (count == 1) {
+            return String.valueOf(from + 1);
+        }
+        return (count == 0 ? from : from + 1) + "," + count;
+    }
+
+    private static void writeLine(char prefix, Lines lines, int i, PrintStream out) {
+        out.write(prefix);
+        lines.write(i, out);
+        if (lines.missingNewline(i)) {
+            out.print("\\ No newline at end of file\n");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stat data of a working file together with the blob id its content hashed to when that
+ * data was recorded. As long as size, mtime, ctime and inode are unchanged the file is assumed
+ * unchanged too, so it does not have to be read and hashed again.
+ *
+ * <p>A file modified in the same timestamp tick as it was hashed would keep its mtime, so an
+ * entry is only trusted if the file's mtime is at least RACY_WINDOW older than the moment it was
+ * hashed. Racily clean files are simply hashed again until they are old enough.
+ *
+ * @author Jialin Shi
+ */
+class FileStat implements Serializable {
+
+    /**
+     * how far apart, in nanoseconds, a file's mtime and its hash time must be for the entry to be
+     * trusted; generous enough for file systems with coarse timestamps
+     */
+    private static final long RACY_WINDOW = TimeUnit.SECONDS.toNanos(2);
+
+    private final long size;
+    private final long mtime;
+    private final long ctime;
+    private final long inode;
+
+    /**
+     * wall clock time, in nanoseconds, when the file was hashed
+     */
+    private final long hashedAt;
+
+    /**
+     * blob id of the content
+     */
+    private final String blobId;
+
+    private FileStat(long size, long mtime, long ctime, long inode, long hashedAt,
+        String blobId) {
+        this.size = size;
+        this.mtime = mtime;
+        this.ctime = ctime;
+        this.inode = inode;
+        this.hashedAt = hashedAt;
+        this.blobId = blobId;
+    }
+
+    /**
+     * Read the stat data of FILE, recording BLOBID as its content hash.
+     *
+     * @return the stat data, or null if FILE cannot be read
+     */
+    static FileStat of(File file, String blobId) {
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        try {
+            Map<String, Object> unix = Files.readAttributes(file.toPath(),
+                "unix:size,lastModifiedTime,ctime,ino");
+            return new FileStat((Long) unix.get("size"),
+                toNanos((FileTime) unix.get("lastModifiedTime")),
+                toNanos((FileTime) unix.get("ctime")), (Long) unix.get("ino"), now, blobId);
+        } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+            try {
+                BasicFileAttributes basic = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+                return new FileStat(basic.size(), toNanos(basic.lastModifiedTime()),
+                    toNanos(basic.creationTime()), 0, now, blobId);
+            } catch (IOException ioExcp) {
+                return null;
+            }
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Tell whether CURRENT, freshly read stat data of the same path, shows the file unchanged
+     * since this entry was recorded, and the entry is not racily clean.
+     */
+    boolean matches(FileStat current) {
+        return current != null && size == current.size && mtime == current.mtime
+            && ctime == current.ctime && inode == current.inode
+            && mtime < hashedAt - RACY_WINDOW;
+    }
+
+    /**
+     * the same stat data recorded with BLOBID as content hash
+     */
+    FileStat withBlobId(String id) {
+        return new FileStat(size, mtime, ctime, inode, hashedAt, id);
+    }
+
+    String getBlobId() {
+        return blobId;
+    }
+
+    /**
+     * bytes of the stat data written by write, not counting the blob id
+     */
+    static final int BYTES = 5 * Long.BYTES;
+
+    /**
+     * Write size, mtime, ctime, inode, hash time and the raw blob id, which must be set.
+     */
+    void write(ByteBuffer out) {
+        out.putLong(size).putLong(mtime).putLong(ctime).putLong(inode).putLong(hashedAt);
+        out.put(PackFile.toRawId(blobId));
+    }
+
+    static FileStat read(ByteBuffer in) {
+        return new FileStat(in.getLong(), in.getLong(), in.getLong(), in.getLong(),
+            in.getLong(), Codec.readId(in));
+    }
+
+    /**
+     * Read an entry of the first binary index format, with varint size and inode.
+     */
+    static FileStat readCompact(ByteBuffer in) {
+        long size = Codec.readVarint(in);
+        long mtime = in.getLong();
+        long ctime = in.getLong();
+        long inode = Codec.readVarint(in);
+        long hashedAt = in.getLong();
+        return new FileStat(size, mtime, ctime, inode, hashedAt, Codec.readId(in));
+    }
+}
@@ -0,0 +1,516 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import static gitlet.Utils.*;
+
+/**
+ * The index file, .gitlet/index, holding one entry per path: whether the path is staged for
+ * addition (with the blob staged) or for removal, and the stat data of the working file.
+ *
+ * <p>The file starts with a base sorted by path and read through a memory mapping: a 20-byte
+ * header (magic, version, number of entries, number of staged entries, bytes of path data), the
+ * fixed-width entries, the paths they point into, and a CRC32C of all of that. Commands that
+ * change a few paths do not rewrite the base: they append one record per changed entry after it,
+ * each record being the path, the entry fields and a CRC32C of both. Records are read back over
+ * the base when the file is opened; a torn last record is dropped and overwritten by the next
+ * append. Once there are more than MAX_JOURNAL records, or more than one per eight base entries,
+ * the whole file is written again as a new base. Every write is synced before it returns.
+ *
+ * <p>Index files of older versions are read in full and written again in this format on the
+ * next save: Java serialized ones, those in the first binary format, and those in this format
+ * but under the magic number "GIDX" that pack indexes use too.
+ *
+ * @author Jialin Shi
+ */
+class IndexFile {
+
+    private static final int MAGIC = 0x44495243; // "DIRC"
+
+    /**
+     * magic number of the older binary formats, which pack indexes use as well
+     */
+    private static final int OLD_MAGIC = 0x47494458; // "GIDX"
+
+    static final int VERSION = 2;
+
+    /**
+     * version byte of the first binary format, written right after the magic number
+     */
+    private static final int VERSION_1 = 1;
+
+    private static final int HEADER = 20;
+
+    /**
+     * bytes of the fields shared by base entries and records: flags, staged blob id, stat data
+     * and the blob id it hashed to
+     */
+    private static final int FIELDS = 1 + Codec.ID_BYTES + FileStat.BYTES + Codec.ID_BYTES;
+
+    /**
+     * bytes of a base entry: path offset and length, then the fields
+     */
+    private static final int ENTRY_BYTES = 8 + FIELDS;
+
+    private static final int CHECKSUM_BYTES = 4;
+
+    /**
+     * records read over the base before it is always written again
+     */
+    private static final int MAX_JOURNAL = 4096;
+
+    private static final int MIN_JOURNAL = 64;
+
+    /**
+     * the mapped base, or null if there is none in the current format
+     */
+    private final ByteBuffer base;
+
+    private final int count;
+
+    private final int pathsStart;
+
+    /**
+     * entries of the records appended after the base, by path
+     */
+    private final TreeMap<String, Entry> journal = new TreeMap<>();
+
+    private int records;
+
+    private int stagedCount;
+
+    /**
+     * end of the last complete record, where the next one is appended
+     */
+    private long end;
+
+    private IndexFile(ByteBuffer base) {
+        this.base = base;
+        if (base == null) {
+            count = 0;
+            pathsStart = 0;
+        } else {
+            count = base.getInt(8);
+            stagedCount = base.getInt(12);
+            pathsStart = HEADER + count * ENTRY_BYTES;
+        }
+    }
+
+    /**
+     * Open the index FILE.
+     *
+     * @return the index, or null if FILE does not exist
+     */
+    static IndexFile open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+            if (mapped.capacity() >= 8 && mapped.getInt(4) == VERSION) {
+                if (mapped.getInt(0) == MAGIC) {
+                    return openCurrent(mapped);
+                }
+                if (mapped.getInt(0) == OLD_MAGIC) {
+                    return openOld(openCurrent(mapped));
+                }
+            }
+            byte[] bytes = new byte[mapped.capacity()];
+            mapped.get(0, bytes);
+            return openOld(bytes);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static IndexFile openCurrent(MappedByteBuffer mapped) {
+        if (mapped.capacity() < HEADER + CHECKSUM_BYTES) {
+            throw error("Corrupt index.");
+        }
+        long count = mapped.getInt(8);
+        long pathBytes = mapped.getInt(16);
+        long baseEnd = HEADER + count * ENTRY_BYTES + pathBytes;
+        if (count < 0 || pathBytes < 0 || baseEnd + CHECKSUM_BYTES > mapped.capacity()
+            || mapped.getInt((int) baseEnd) != checksum(mapped, 0, (int) baseEnd)) {
+            throw error("Corrupt index.");
+        }
+        IndexFile index = new IndexFile(mapped);
+        index.replay(mapped, (int) baseEnd + CHECKSUM_BYTES);
+        return index;
+    }
+
+    /**
+     * Read the records appended after the base, from START up to the first incomplete one.
+     */
+    private void replay(ByteBuffer mapped, int start) {
+        int pos = start;
+        while (pos + 4 <= mapped.capacity()) {
+            int pathLength = mapped.getInt(pos);
+            int length = 4 + pathLength + FIELDS;
+            if (pathLength < 0 || pos + length + CHECKSUM_BYTES > mapped.capacity()
+                || mapped.getInt(pos + length) != checksum(mapped, pos, length)) {
+                break;
+            }
+            String path = decodePath(mapped, pos + 4, pathLength);
+            ByteBuffer fields = mapped.duplicate().position(pos + 4 + pathLength);
+            apply(path, Entry.read(fields));
+            records += 1;
+            pos += length + CHECKSUM_BYTES;
+        }
+        end = pos;
+    }
+
+    /**
+     * Copy every entry of INDEX, read in this format but under the old magic number, so that it
+     * is rewritten as a whole with the current one on the next save.
+     */
+    private static IndexFile openOld(IndexFile index) {
+        IndexFile copy = new IndexFile(null);
+        for (Map.Entry<String, Entry> entry : index.entries().entrySet()) {
+            copy.apply(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Read an index in an older format in full. It is rewritten as a whole on the next save.
+     */
+    private static IndexFile openOld(byte[] bytes) {
+        IndexFile index = new IndexFile(null);
+        if (Codec.isLegacy(bytes)) {
+            Legacy legacy = Codec.readLegacy(bytes, Legacy.class,
+                Map.of(StagingArea.class.getName(), Legacy.class));
+            legacy.addTo(index);
+            return index;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getInt() != OLD_MAGIC || in.get() != VERSION_1) {
+                throw error("Unsupported index format.");
+            }
+            for (int i = Codec.readCount(in); i > 0; i -= 1) {
+                String path = Codec.readString(in);
+                index.apply(path, index.get(path).added(Codec.readId(in)));
+            }
+            for (int i = Codec.readCount(in); i > 0; i -= 1) {
+                String path = Codec.readString(in);
+                index.apply(path, index.get(path).removed());
+            }
+            for (int i = Codec.readCount(in); i > 0; i -= 1) {
+                String path = Codec.readString(in);
+                index.apply(path, index.get(path).withStat(FileStat.readCompact(in)));
+            }
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupt index.");
+        }
+        return index;
+    }
+
+    /**
+     * Set the entry of PATH to ENTRY over the base, keeping the number of staged entries.
+     */
+    private void apply(String path, Entry entry) {
+        Entry previous = get(path);
+        stagedCount += (entry.isStaged() ? 1 : 0) - (previous.isStaged() ? 1 : 0);
+        journal.put(path, entry);
+    }
+
+    /**
+     * the entry of PATH, empty if there is none
+     */
+    Entry get(String path) {
+        Entry entry = journal.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = pathAt(mid).compareTo(path);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return entryAt(mid);
+            }
+        }
+        return Entry.EMPTY;
+    }
+
+    private String pathAt(int i) {
+        int at = HEADER + i * ENTRY_BYTES;
+        return decodePath(base, pathsStart + base.getInt(at), base.getInt(at + 4));
+    }
+
+    private Entry entryAt(int i) {
+        return Entry.read(base.duplicate().position(HEADER + i * ENTRY_BYTES + 8));
+    }
+
+    /**
+     * every entry that is not empty, sorted by path
+     */
+    SortedMap<String, Entry> entries() {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        for (int i = 0; i < count; i += 1) {
+            entries.put(pathAt(i), entryAt(i));
+        }
+        entries.putAll(journal);
+        entries.values().removeIf(Entry::isEmpty);
+        return entries;
+    }
+
+    /**
+     * the number of paths staged for addition or removal
+     */
+    int stagedCount() {
+        return stagedCount;
+    }
+
+    /**
+     * Save CHANGES, the new entries of some paths, to FILE, which this index was opened from:
+     * appended as records if the base is still small enough to be read over, or else with the
+     * whole index written again. This index is left as it was.
+     *
+     * @return the index as saved
+     */
+    IndexFile save(File file, Map<String, Entry> changes) {
+        if (base == null || (long) records + changes.size() > Math.min(MAX_JOURNAL,
+            Math.max(MIN_JOURNAL, count / 8))) {
+            SortedMap<String, Entry> entries = entries();
+            entries.putAll(changes);
+            entries.values().removeIf(Entry::isEmpty);
+            return write(file, entries);
+        }
+        IndexFile saved = new IndexFile(base);
+        saved.journal.putAll(journal);
+        saved.records = records;
+        saved.stagedCount = stagedCount;
+        ByteBuffer out = ByteBuffer.allocate(recordBytes(changes));
+        for (Map.Entry<String, Entry> change : new TreeMap<>(changes).entrySet()) {
+            int start = out.position();
+            byte[] path = change.getKey().getBytes(StandardCharsets.UTF_8);
+            out.putInt(path.length).put(path);
+            change.getValue().write(out);
+            out.putInt(checksum(out, start, out.position() - start));
+            saved.apply(change.getKey(), change.getValue());
+            saved.records += 1;
+        }
+        out.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+            channel.position(end);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+            saved.end = channel.position();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return saved;
+    }
+
+    private static int recordBytes(Map<String, Entry> changes) {
+        int bytes = 0;
+        for (String path : changes.keySet()) {
+            bytes += 4 + path.getBytes(StandardCharsets.UTF_8).length + FIELDS + CHECKSUM_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Write ENTRIES, sorted by path and none of them empty, as the new base of FILE, replacing
+     * it atomically.
+     *
+     * @return the index written
+     */
+    static IndexFile write(File file, SortedMap<String, Entry> entries) {
+        Map<String, byte[]> paths = new HashMap<>();
+        int pathBytes = 0;
+        int staged = 0;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            paths.put(entry.getKey(), path);
+            pathBytes += path.length;
+            staged += entry.getValue().isStaged() ? 1 : 0;
+        }
+        int baseEnd = HEADER + entries.size() * ENTRY_BYTES + pathBytes;
+        ByteBuffer out = ByteBuffer.allocate(baseEnd + CHECKSUM_BYTES);
+        out.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(staged)
+            .putInt(pathBytes);
+        int pathOffset = 0;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            int length = paths.get(entry.getKey()).length;
+            out.putInt(pathOffset).putInt(length);
+            entry.getValue().write(out);
+            pathOffset += length;
+        }
+        for (String path : entries.keySet()) {
+            out.put(paths.get(path));
+        }
+        out.putInt(checksum(out, 0, baseEnd));
+        File temp = WriteBatch.tempFile();
+        writeContents(temp, out.array());
+        WriteBatch.replace(temp, file);
+        IndexFile index = new IndexFile(out.rewind());
+        index.end = out.capacity();
+        return index;
+    }
+
+    private static String decodePath(ByteBuffer buffer, int at, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(ByteBuffer buffer, int at, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(at + length).position(at));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The state of one path in the index. Entries never change; the methods return new ones.
+     */
+    static final class Entry {
+
+        private static final byte UNSTAGED = 0;
+        private static final byte ADDED = 1;
+        private static final byte REMOVED = 2;
+
+        /**
+         * mask of the stage in the flags byte
+         */
+        private static final byte STAGE = 3;
+
+        /**
+         * flag set if the stat data is present
+         */
+        private static final byte HAS_STAT = 4;
+
+        /**
+         * a path neither staged nor hashed
+         */
+        static final Entry EMPTY = new Entry(UNSTAGED, null, null);
+
+        private static final byte[] NO_ID = new byte[Codec.ID_BYTES];
+
+        private final byte stage;
+
+        /**
+         * blob staged for addition, or null
+         */
+        private final String blobId;
+
+        /**
+         * stat data recorded the last time the working file was hashed, or null
+         */
+        private final FileStat stat;
+
+        private Entry(byte stage, String blobId, FileStat stat) {
+            this.stage = stage;
+            this.blobId = blobId;
+            this.stat = stat;
+        }
+
+        boolean isAdded() {
+            return stage == ADDED;
+        }
+
+        boolean isRemoved() {
+            return stage == REMOVED;
+        }
+
+        boolean isStaged() {
+            return stage != UNSTAGED;
+        }
+
+        boolean isEmpty() {
+            return stage == UNSTAGED && stat == null;
+        }
+
+        String getBlobId() {
+            return blobId;
+        }
+
+        FileStat getStat() {
+            return stat;
+        }
+
+        Entry added(String id) {
+            return new Entry(ADDED, id, stat);
+        }
+
+        Entry removed() {
+            return new Entry(REMOVED, null, stat);
+        }
+
+        Entry unstaged() {
+            return new Entry(UNSTAGED, null, stat);
+        }
+
+        Entry withStat(FileStat newStat) {
+            return new Entry(stage, blobId, newStat);
+        }
+
+        private void write(ByteBuffer out) {
+            out.put((byte) (stat == null ? stage : stage | HAS_STAT));
+            out.put(blobId == null ? NO_ID : PackFile.toRawId(blobId));
+            if (stat == null) {
+                out.put(new byte[FileStat.BYTES + Codec.ID_BYTES]);
+            } else {
+                stat.write(out);
+            }
+        }
+
+        private static Entry read(ByteBuffer in) {
+            byte flags = in.get();
+            byte stage = (byte) (flags & STAGE);
+            String blobId = Codec.readId(in);
+            FileStat stat = (flags & HAS_STAT) == 0 ? null : FileStat.read(in);
+            return new Entry(stage, stage == ADDED ? blobId : null, stat);
+        }
+    }
+
+    /**
+     * The fields of a staging area saved with Java serialization, under the name
+     * gitlet.StagingArea.
+     */
+    private static class Legacy implements Serializable {
+        private Map<String, String> addedStagingFile;
+        private Set<String> removedStagingFile;
+        private Map<String, FileStat> statCache;
+
+        void addTo(IndexFile index) {
+            for (Map.Entry<String, String> entry : addedStagingFile.entrySet()) {
+                index.apply(entry.getKey(), index.get(entry.getKey()).added(entry.getValue()));
+            }
+            for (String path : removedStagingFile) {
+                index.apply(path, index.get(path).removed());
+            }
+            if (statCache != null) {
+                for (Map.Entry<String, FileStat> entry : statCache.entrySet()) {
+                    Entry current = index.get(entry.getKey());
+                    index.apply(entry.getKey(), current.withStat(entry.getValue()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Three-way merge of file contents, line by line, as diff3 does. The lines of the split point
+ * version, the current one and the given one are interned together, and each of the two sides
+ * is diffed against the split point with Diff. The two lists of edits are then walked together
+ * in one pass: an edit made on one side only is taken as it is, the same edit made on both is
+ * taken once, and only edits that overlap or touch, and differ, become a conflict. The lines the
+ * two versions of a conflict start and end with in common are kept out of it.
+ *
+ * <p>A conflict is written as merge always wrote whole-file conflicts, each version's lines as
+ * they are between the markers.
+ *
+ * @author Jialin Shi
+ */
+class LineMerge {
+
+    private static final byte[] OURS_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Diff.Lines base;
+    private final Diff.Lines ours;
+    private final Diff.Lines theirs;
+    private final int[] oursIds;
+    private final int[] theirsIds;
+    private final OutputStream out;
+
+    private boolean conflicted;
+
+    private LineMerge(byte[] base, byte[] ours, byte[] theirs, OutputStream out) {
+        this.base = Diff.split(base);
+        this.ours = Diff.split(ours);
+        this.theirs = Diff.split(theirs);
+        int[][] interned = Diff.intern(this.base, this.ours, this.theirs);
+        this.oursIds = interned[1];
+        this.theirsIds = interned[2];
+        this.out = out;
+        run(Diff.diff(interned[0], oursIds), Diff.diff(interned[0], theirsIds));
+    }
+
+    /**
+     * Merge the changes OURS and THEIRS made to BASE, writing the result to OUT. A missing
+     * version is passed as empty content.
+     *
+     * @return true if the result has conflicts
+     */
+    static boolean merge(byte[] base, byte[] ours, byte[] theirs, OutputStream out) {
+        return new LineMerge(base, ours, theirs, out).conflicted;
+    }
+
+    /**
+     * Walk the edits of both sides in base order, each group of overlapping edits at a time.
+     */
+    private void run(List<Diff.Edit> oursEdits, List<Diff.Edit> theirsEdits) {
+        int i = 0;
+        int j = 0;
+        int basePos = 0;
+        int oursDelta = 0;
+        int theirsDelta = 0;
+        while (i < oursEdits.size() || j < theirsEdits.size()) {
+            boolean oursFirst = j == theirsEdits.size() || (i < oursEdits.size()
+                && oursEdits.get(i).aStart <= theirsEdits.get(j).aStart);
+            Diff.Edit first = oursFirst ? oursEdits.get(i) : theirsEdits.get(j);
+            int groupStart = first.aStart;
+            int groupEnd = first.aEnd;
+            int oursFrom = groupStart + oursDelta;
+            int theirsFrom = groupStart + theirsDelta;
+            boolean oursChanged = false;
+            boolean theirsChanged = false;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (i < oursEdits.size() && oursEdits.get(i).aStart <= groupEnd) {
+                    Diff.Edit edit = oursEdits.get(i);
+                    groupEnd = Math.max(groupEnd, edit.aEnd);
+                    oursDelta = edit.bEnd - edit.aEnd;
+                    oursChanged = true;
+                    grown = true;
+                    i += 1;
+                }
+                if (j < theirsEdits.size() && theirsEdits.get(j).aStart <= groupEnd) {
+                    Diff.Edit edit = theirsEdits.get(j);
+                    groupEnd = Math.max(groupEnd, edit.aEnd);
+                    theirsDelta = edit.bEnd - edit.aEnd;
+                    theirsChanged = true;
+                    grown = true;
+                    j += 1;
+                }
+            }
+            write(base, basePos, groupStart);
+            int oursTo = groupEnd + oursDelta;
+            int theirsTo = groupEnd + theirsDelta;
+            if (!theirsChanged) {
+                write(ours, oursFrom, oursTo);
+            } else if (!oursChanged || same(oursFrom, oursTo, theirsFrom, theirsTo)) {
+                write(theirs, theirsFrom, theirsTo);
+            } else {
+                conflict(oursFrom, oursTo, theirsFrom, theirsTo);
+            }
+            basePos = groupEnd;
+        }
+        write(base, basePos, base.size());
+    }
+
+    private boolean same(int oursFrom, int oursTo, int theirsFrom, int theirsTo) {
+        return oursTo - oursFrom == theirsTo - theirsFrom && Arrays.equals(oursIds,
+            oursFrom, oursTo, theirsIds, theirsFrom, theirsTo);
+    }
+
+    /**
+     * Write the conflict between our lines [oursFrom, oursTo) and their lines
+     * [theirsFrom, theirsTo), leaving the lines both start and end with outside the markers.
+     */
+    private void conflict(int oursFrom, int oursTo, int theirsFrom, int theirsTo) {
+        int head = 0;
+        while (oursFrom + head < oursTo && theirsFrom + head < theirsTo
+            && oursIds[oursFrom + head] == theirsIds[theirsFrom + head]) {
+            head += 1;
+        }
+        int tail = 0;
+        while (oursTo - tail > oursFrom + head && theirsTo - tail > theirsFrom + head
+            && oursIds[oursTo - tail - 1] == theirsIds[theirsTo - tail - 1]) {
+            tail += 1;
+        }
+        write(ours, oursFrom, oursFrom + head);
+        writeBytes(OURS_MARKER);
+        write(ours, oursFrom + head, oursTo - tail);
+        writeBytes(SEPARATOR);
+        write(theirs, theirsFrom + head, theirsTo - tail);
+        writeBytes(THEIRS_MARKER);
+        write(ours, oursTo - tail, oursTo);
+        conflicted = true;
+    }
+
+    private void write(Diff.Lines lines, int from, int to) {
+        try {
+            lines.writeRaw(from, to, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        try {
+            out.write(bytes);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * The compressed on-disk encoding of one object under .gitlet/commits or .gitlet/blobs. The file
+ * is a single Deflate (zlib) stream of the header "TYPE SIZE\0" followed by SIZE bytes of
+ * payload, so an object can be inflated and consumed as a stream without ever holding it whole.
+ *
+ * @author Jialin Shi
+ */
+class LooseObject implements Closeable {
+
+    /**
+     * first two bytes of a Java serialization stream, used by objects written before compression
+     */
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    /**
+     * type written in the header
+     */
+    private final String type;
+
+    /**
+     * uncompressed size of the payload
+     */
+    private final long size;
+
+    /**
+     * inflating stream positioned at the first payload byte
+     */
+    private final InputStream stream;
+
+    private LooseObject(String type, long size, InputStream stream) {
+        this.type = type;
+        this.size = size;
+        this.stream = stream;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * the payload stream; closing this object closes it as well
+     */
+    public InputStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * an object of TYPE whose payload is already in memory
+     */
+    static LooseObject ofBytes(String type, byte[] payload) {
+        return new LooseObject(type, payload.length, new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * encode the header for an object of TYPE with SIZE payload bytes
+     */
+    static byte[] header(String type, long size) {
+        return (type + " " + size + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create FILE and return a compressing stream into it with the header already written. The
+     * caller must write exactly SIZE bytes and close the stream.
+     */
+    static OutputStream create(File file, String type, long size) throws IOException {
+        return create(Files.newOutputStream(file.toPath()), type, size);
+    }
+
+    private static OutputStream create(OutputStream raw, String type, long size)
+        throws IOException {
+        OutputStream out = new DeflaterOutputStream(raw,
+            new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE);
+        out.write(header(type, size));
+        return out;
+    }
+
+    /**
+     * write PAYLOAD as a compressed object of TYPE into FILE
+     */
+    static void write(File file, String type, byte[] payload) {
+        try (OutputStream out = create(file, type, payload.length)) {
+            out.write(payload);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * the compressed encoding of PAYLOAD as an object of TYPE
+     */
+    static byte[] encode(String type, byte[] payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = create(bytes, type, payload.length)) {
+            out.write(payload);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Open FILE, inflate its header and check that it holds an object of TYPE.
+     */
+    static LooseObject open(File file, String type) throws IOException {
+        return open(Files.newInputStream(file.toPath()), type, file.getName());
+    }
+
+    /**
+     * Inflate an object of TYPE, or of any type if TYPE is null, from the compressed stream RAW.
+     * NAME is used in error messages.
+     */
+    static LooseObject open(InputStream raw, String type, String name) throws IOException {
+        InputStream in = new BufferedInputStream(new InflaterInputStream(raw), BUFFER_SIZE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            header.write(b);
+        }
+        String[] fields = header.toString(StandardCharsets.UTF_8).split(" ");
+        if (b < 0 || fields.length != 2 || (type != null && !fields[0].equals(type))) {
+            in.close();
+            throw error("Corrupt object %s.", name);
+        }
+        long size;
+        try {
+            size = Long.parseLong(fields[1]);
+        } catch (NumberFormatException excp) {
+            size = -1;
+        }
+        if (size < 0) {
+            in.close();
+            throw error("Corrupt object %s.", name);
+        }
+        return new LooseObject(fields[0], size, in);
+    }
+
+    /**
+     * Open object ID of TYPE, reading the loose LOOSEFILE if it exists and looking it up in the
+     * packs otherwise. A blob stored as a delta is rebuilt from its base.
+     *
+     * @return the inflating object, or null if the object is stored nowhere
+     */
+    static LooseObject find(String id, File looseFile, String type) throws IOException {
+        LooseObject object = findStored(id, looseFile);
+        if (object == null) {
+            return null;
+        }
+        if (object.type.equals(Delta.DELTA_TYPE) && type.equals(Blob.BLOB_TYPE)) {
+            return Delta.resolve(id, object);
+        }
+        if (!object.type.equals(type)) {
+            object.close();
+            throw error("Corrupt object %s.", id);
+        }
+        return object;
+    }
+
+    /**
+     * Open object ID as it is stored, loose in LOOSEFILE or packed, whatever its type.
+     *
+     * @return the inflating object, or null if the object is stored nowhere
+     */
+    static LooseObject findStored(String id, File looseFile) throws IOException {
+        File stored = WriteBatch.resolve(looseFile);
+        if (stored.exists()) {
+            return open(stored, null);
+        }
+        return PackFile.open(id, null);
+    }
+
+    /**
+     * Tell whether FILE was written by the old uncompressed Java serialization format.
+     */
+    static boolean isLegacy(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return ((in.read() << 8) | in.read()) == LEGACY_MAGIC;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
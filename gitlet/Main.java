@@ -7,6 +7,8 @@ package gitlet;
  */
 
 
+import java.util.Arrays;
+
 import static gitlet.Utils.*;
 import static gitlet.AdditionalUtils.*;
 
@@ -17,6 +19,29 @@ public class Main {
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Run the command in ARGS. A user error ends the command with a GitletException carrying
+     * the message to print. What the command writes to the repository is published at its end
+     * through one WriteBatch. The batch and daemon commands run other commands, and each of
+     * those gets its own.
+     */
+    static void run(String[] args) {
+        if (args.length > 0 && (args[0].equals("batch") || args[0].equals("daemon"))) {
+            dispatch(args);
+        } else {
+            WriteBatch.run(() -> dispatch(args));
+        }
+    }
+
+    private static void dispatch(String[] args) {
         if (args.length == 0) {
             exit("Please enter a command.");
         }
@@ -28,8 +53,10 @@ public class Main {
                 break;
             case "add":
                 Repository.checkCWD();
-                ifArgValid(args, 2);
-                Repository.add(args[1]);
+                if (args.length < 2) {
+                    exit("Incorrect operands.");
+                }
+                Repository.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 Repository.checkCWD();
@@ -62,6 +89,16 @@ public class Main {
                 ifArgValid(args, 1);
                 Repository.status();
                 break;
+            case "diff":
+                Repository.checkCWD();
+                int separator = Arrays.asList(args).indexOf("--");
+                int commitsEnd = separator < 0 ? args.length : separator;
+                if (commitsEnd > 3 || separator == args.length - 1) {
+                    exit("Incorrect operands.");
+                }
+                Repository.diff(Arrays.copyOfRange(args, 1, commitsEnd), separator < 0
+                    ? new String[0] : Arrays.copyOfRange(args, separator + 1, args.length));
+                break;
             case "log":
                 Repository.checkCWD();
                 ifArgValid(args, 1);
@@ -102,6 +139,23 @@ public class Main {
                 ifArgValid(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "gc":
+                Repository.checkCWD();
+                ifArgValid(args, 1);
+                Repository.gc();
+                break;
+            case "batch":
+                ifArgValid(args, 2);
+                Batch.run(args[1]);
+                break;
+            case "daemon":
+                Repository.checkCWD();
+                if (args.length == 2 && args[1].equals("stop")) {
+                    exit("No daemon is running.");
+                }
+                ifArgValid(args, 1);
+                Daemon.serve();
+                break;
             default:
                 exit("No command with that name exists.");
         }
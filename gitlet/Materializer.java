@@ -0,0 +1,107 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/**
+ * Writes blobs out to working files on a bounded pool of threads, so that checking out many files
+ * is not bound by the latency of each read and write. The pool size is taken from the system
+ * property gitlet.checkout.threads, then the environment variable GITLET_CHECKOUT_THREADS, and
+ * defaults to twice the number of processors.
+ *
+ * <p>Every file is attempted even if some fail. The failure reported is then the one for the
+ * first failing path in sorted order, with the others attached as suppressed exceptions, so the
+ * same broken checkout always reports the same error.
+ *
+ * @author Jialin Shi
+ */
+class Materializer {
+
+    static final String THREADS_PROPERTY = "gitlet.checkout.threads";
+
+    static final String THREADS_ENV = "GITLET_CHECKOUT_THREADS";
+
+    /**
+     * the configured number of writer threads, at least 1
+     */
+    static int concurrency() {
+        String configured = System.getProperty(THREADS_PROPERTY, System.getenv(THREADS_ENV));
+        if (configured != null) {
+            try {
+                return Math.max(1, Integer.parseInt(configured.trim()));
+            } catch (NumberFormatException excp) {
+                throw error("Invalid checkout thread count: %s", configured);
+            }
+        }
+        return 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Write each blob of FILES, which maps file paths to blob ids, to its file.
+     */
+    static void write(Map<String, String> files) {
+        Map<String, String> sorted = new TreeMap<>(files);
+        int threads = Math.min(concurrency(), sorted.size());
+        List<RuntimeException> failures = new ArrayList<>();
+        if (threads <= 1) {
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                try {
+                    writeOne(entry.getKey(), entry.getValue());
+                } catch (RuntimeException excp) {
+                    failures.add(excp);
+                }
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "gitlet-checkout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            List<Future<?>> writes = new ArrayList<>();
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                writes.add(pool.submit(() -> writeOne(entry.getKey(), entry.getValue())));
+            }
+            pool.shutdown();
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException excp) {
+                    failures.add(asRuntime(excp.getCause()));
+                } catch (InterruptedException excp) {
+                    Thread.currentThread().interrupt();
+                    failures.add(new IllegalStateException("Checkout was interrupted."));
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            RuntimeException first = failures.get(0);
+            for (RuntimeException other : failures.subList(1, failures.size())) {
+                first.addSuppressed(other);
+            }
+            throw first;
+        }
+    }
+
+    private static void writeOne(String path, String blobId) {
+        Blob.fromFile(blobId).writeContentsTo(new File(path));
+    }
+
+    private static RuntimeException asRuntime(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalArgumentException(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,146 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * The on-disk index used by find, under .gitlet/messages. Each commit message is normalized
+ * (line endings made "\n", surrounding whitespace trimmed) and hashed with SHA1, and the commit id
+ * is appended to the bucket file named by the first two hex digits of that hash, as a line
+ * "NORMALIZEDHASH MESSAGEHASH COMMITID". find matches messages exactly, so a query reads a single
+ * bucket and keeps the lines whose hash of the exact message matches; it never opens a commit.
+ *
+ * <p>The index is written by init and appended to by every commit. A repository created before
+ * the index existed has no folder, and one created before this format has no version file; either
+ * way the index is rebuilt from all commits on the first find.
+ *
+ * @author Jialin Shi
+ */
+class MessageIndex {
+
+    private static final int BUCKET_DIGITS = 2;
+
+    private static final String FORMAT_VERSION = "2";
+
+    private static File folder() {
+        return Repository.MESSAGEFOLDER;
+    }
+
+    private static File versionFile(File folder) {
+        return join(folder, "version");
+    }
+
+    /**
+     * Tell whether the index has been built in the current format.
+     */
+    private static boolean isBuilt() {
+        File version = versionFile(folder());
+        return version.isFile() && readContentsAsString(version).equals(FORMAT_VERSION);
+    }
+
+    /**
+     * Create the empty index of a new repository.
+     */
+    static void create() {
+        folder().mkdir();
+        writeContents(versionFile(folder()), FORMAT_VERSION);
+    }
+
+    private static String normalize(String message) {
+        return message.replace("\r\n", "\n").replace('\r', '\n').trim();
+    }
+
+    private static String bucketHash(String message) {
+        return sha1(normalize(message));
+    }
+
+    private static String line(String message, String commitId) {
+        return bucketHash(message) + " " + sha1(message) + " " + commitId + "\n";
+    }
+
+    /**
+     * Record that commit COMMITID has MESSAGE. Does nothing while the index has not been built.
+     */
+    static void add(String message, String commitId) {
+        if (!isBuilt()) {
+            return;
+        }
+        String messageHash = bucketHash(message);
+        File bucket = join(folder(), messageHash.substring(0, BUCKET_DIGITS));
+        try {
+            Files.write(bucket.toPath(), line(message, commitId).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Get the ids of all commits with exactly MESSAGE, in the order they were recorded, each
+     * once even if an older index recorded it twice.
+     */
+    static List<String> find(String message) {
+        if (!isBuilt()) {
+            rebuild();
+        }
+        String messageHash = bucketHash(message);
+        String prefix = messageHash + " " + sha1(message) + " ";
+        File bucket = join(folder(), messageHash.substring(0, BUCKET_DIGITS));
+        Set<String> ids = new LinkedHashSet<>();
+        if (bucket.isFile()) {
+            for (String entry : readContentsAsString(bucket).split("\n")) {
+                if (entry.startsWith(prefix)) {
+                    ids.add(entry.substring(prefix.length()));
+                }
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Build the index again from every commit, loose or packed.
+     */
+    static void rebuild() {
+        Map<String, StringBuilder> buckets = new HashMap<>();
+        for (String commitId : Repository.getAllCommitId()) {
+            String message = Commit.fromFile(commitId).getMessage();
+            buckets.computeIfAbsent(bucketHash(message).substring(0, BUCKET_DIGITS),
+                k -> new StringBuilder()).append(line(message, commitId));
+        }
+        File temp = new File(folder().getPath() + ".tmp");
+        clear(temp);
+        temp.mkdir();
+        for (Map.Entry<String, StringBuilder> bucket : buckets.entrySet()) {
+            writeContents(join(temp, bucket.getKey()), bucket.getValue().toString());
+        }
+        writeContents(versionFile(temp), FORMAT_VERSION);
+        clear(folder());
+        if (!temp.renameTo(folder())) {
+            throw new IllegalArgumentException("Could not write the message index.");
+        }
+    }
+
+    /**
+     * Delete FOLDER, a flat folder of files, if it exists.
+     */
+    private static void clear(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+}
@@ -0,0 +1,187 @@
+package gitlet;
+
+import java.io.File;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * Upgrades a repository written by the first versions of gitlet, which has no trees folder, to
+ * the current layout. There, a commit is a Java serialized Commit whose tracked map holds the
+ * absolute path and the blob id of every file, a blob is a Java serialized Blob whose id is the
+ * SHA1 of its path and content, and the index is a Java serialized StagingArea.
+ *
+ * <p>Every such blob is saved again under the id of its content, every such commit again under
+ * the id it already has, with a tree built from its tracked map, and the index is rewritten with
+ * the new blob ids. Refs therefore stay as they are. The absolute paths are taken relative to the
+ * directory the repository was in, which commits recorded in their file field, so a repository
+ * that was moved since is upgraded as well.
+ *
+ * <p>The marker file Repository.UPGRADE_MARKER holds that directory from the start of an upgrade
+ * to its end, and the old blob files are deleted only once everything else is published, so an
+ * upgrade cut short runs again on the next command and finishes.
+ *
+ * @author Jialin Shi
+ */
+class Migration {
+
+    /**
+     * Upgrade the repository in CWD if it is in the first layout or an upgrade was cut short.
+     */
+    static void upgradeIfNeeded() {
+        if (Repository.TREEFOLDER.exists() && !Repository.UPGRADE_MARKER.exists()) {
+            return;
+        }
+        WriteBatch.run(Migration::upgrade);
+    }
+
+    private static void upgrade() {
+        String[] commitIds = Repository.scanCommitIds();
+        Path oldRoot = oldRoot(commitIds);
+        Map<String, File> legacyBlobs = new HashMap<>();
+        for (Map.Entry<String, File> blob
+            : Repository.getLooseObjects(Repository.BLOBFOLDER).entrySet()) {
+            if (LooseObject.isLegacy(blob.getValue())) {
+                legacyBlobs.put(blob.getKey(), blob.getValue());
+            }
+        }
+        Map<String, String> blobIds = new HashMap<>();
+        for (Map.Entry<String, File> blob : legacyBlobs.entrySet()) {
+            LegacyBlob legacy = readLegacy(readContents(blob.getValue()), LegacyBlob.class,
+                Blob.class);
+            blobIds.put(blob.getKey(), Blob.save(legacy.content));
+        }
+        for (String id : commitIds) {
+            upgradeCommit(id, oldRoot, blobIds);
+        }
+        WriteBatch.checkpoint();
+        upgradeIndex(oldRoot, blobIds);
+        for (File file : legacyBlobs.values()) {
+            file.delete();
+            file.getParentFile().delete();
+        }
+        Repository.TREEFOLDER.mkdir();
+        Repository.UPGRADE_MARKER.delete();
+    }
+
+    /**
+     * Find the directory the repository was in when its commits were written, from the marker
+     * of an upgrade already started or from the first commit still in the legacy encoding, and
+     * record it in the marker.
+     */
+    private static Path oldRoot(String[] commitIds) {
+        if (Repository.UPGRADE_MARKER.exists()) {
+            return Paths.get(readContentsAsString(Repository.UPGRADE_MARKER));
+        }
+        Path root = Repository.CWD.toPath();
+        for (String id : commitIds) {
+            byte[] payload = loadPayload(id, getObjectFile(id), Commit.COMMIT_TYPE);
+            if (payload != null && Codec.isLegacy(payload)) {
+                LegacyCommit legacy = readLegacy(payload, LegacyCommit.class, Commit.class);
+                // the file was ROOT/.gitlet/commits/XX/YYYY
+                root = legacy.file.toPath().getParent().getParent().getParent().getParent();
+                break;
+            }
+        }
+        writeContents(Repository.UPGRADE_MARKER, root.toString());
+        return root;
+    }
+
+    /**
+     * Save commit ID again with a tree if it is still a Java serialized Commit with a tracked
+     * map. BLOBIDS maps old blob ids to the ids their content was saved again under.
+     */
+    private static void upgradeCommit(String id, Path oldRoot, Map<String, String> blobIds) {
+        byte[] payload = loadPayload(id, getObjectFile(id), Commit.COMMIT_TYPE);
+        if (payload == null || !Codec.isLegacy(payload)) {
+            return;
+        }
+        LegacyCommit legacy = readLegacy(payload, LegacyCommit.class, Commit.class);
+        Map<String, String> files = new HashMap<>();
+        for (Map.Entry<String, String> entry : legacy.tracked.entrySet()) {
+            String blobId = entry.getValue();
+            files.put(relocate(oldRoot, entry.getKey()), blobIds.getOrDefault(blobId, blobId));
+        }
+        String tree = Tree.updateRoot(null, files);
+        new Commit(id, legacy.timestamp, legacy.message, legacy.parent, tree).saveCommit();
+    }
+
+    /**
+     * Rewrite the index in the current format if it is still a Java serialized StagingArea.
+     */
+    private static void upgradeIndex(Path oldRoot, Map<String, String> blobIds) {
+        if (!Repository.INDEX.exists()) {
+            return;
+        }
+        byte[] bytes = readContents(Repository.INDEX);
+        if (!Codec.isLegacy(bytes)) {
+            return;
+        }
+        LegacyStagingArea legacy = readLegacy(bytes, LegacyStagingArea.class,
+            StagingArea.class);
+        TreeMap<String, IndexFile.Entry> entries = new TreeMap<>();
+        for (Map.Entry<String, String> entry : legacy.addedStagingFile.entrySet()) {
+            String blobId = entry.getValue();
+            entries.put(Repository.absolutePath(relocate(oldRoot, entry.getKey())),
+                IndexFile.Entry.EMPTY.added(blobIds.getOrDefault(blobId, blobId)));
+        }
+        for (String path : legacy.removedStagingFile) {
+            entries.put(Repository.absolutePath(relocate(oldRoot, path)),
+                IndexFile.Entry.EMPTY.removed());
+        }
+        IndexFile.write(Repository.INDEX, entries);
+    }
+
+    /**
+     * the path, relative to OLDROOT and with '/' as separator, of the absolute PATH
+     */
+    private static String relocate(Path oldRoot, String path) {
+        Path file = Paths.get(path).normalize();
+        if (!file.startsWith(oldRoot) || file.equals(oldRoot)) {
+            throw error("Cannot upgrade the repository: %s is outside %s.", path, oldRoot);
+        }
+        return oldRoot.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static <T> T readLegacy(byte[] bytes, Class<T> shape, Class<?> original) {
+        return Codec.readLegacy(bytes, shape, Map.of(original.getName(), shape));
+    }
+
+    /**
+     * The fields of a commit of the first versions, under the name gitlet.Commit.
+     */
+    private static class LegacyCommit implements Serializable {
+        private String commitSHA1;
+        private String timestamp;
+        private String message;
+        private List<String> parent;
+        private Map<String, String> tracked;
+        private File file;
+    }
+
+    /**
+     * The fields of a blob of the first versions, under the name gitlet.Blob.
+     */
+    private static class LegacyBlob implements Serializable {
+        private File source;
+        private String blobSHA1;
+        private byte[] content;
+        private File file;
+    }
+
+    /**
+     * The fields of a staging area of the first versions, under the name gitlet.StagingArea.
+     */
+    private static class LegacyStagingArea implements Serializable {
+        private Map<String, String> addedStagingFile;
+        private Set<String> removedStagingFile;
+    }
+}
@@ -0,0 +1,106 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least-recently-used cache of immutable objects by id, bounded by the total estimated size of
+ * its values rather than by their number. A value weighing more than a quarter of the capacity is
+ * never cached, so one huge object cannot flush everything else. All methods are safe to call
+ * from several threads; loading a missing value happens outside the lock.
+ *
+ * @author Jialin Shi
+ */
+class ObjectCache<V> {
+
+    private final long capacity;
+
+    private final ToLongFunction<V> weigher;
+
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * a cache of at most CAPACITY bytes, where WEIGHER estimates the bytes taken by a value
+     */
+    ObjectCache(long capacity, ToLongFunction<V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /**
+     * the value cached for ID, or null
+     */
+    synchronized V get(String id) {
+        V value = entries.get(id);
+        if (value == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return value;
+    }
+
+    /**
+     * Get the value for ID, calling LOADER on a miss and caching what it returns unless null.
+     */
+    V get(String id, Function<String, V> loader) {
+        V value = get(id);
+        if (value == null) {
+            value = loader.apply(id);
+            if (value != null) {
+                put(id, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Cache VALUE for ID, evicting the least recently used values beyond the capacity.
+     */
+    synchronized void put(String id, V value) {
+        long size = weigher.applyAsLong(value);
+        if (size > capacity / 4) {
+            return;
+        }
+        V old = entries.put(id, value);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += size;
+        Iterator<Map.Entry<String, V>> eldest = entries.entrySet().iterator();
+        while (weight > capacity) {
+            weight -= weigher.applyAsLong(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * estimated bytes taken by the cached values
+     */
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d bytes, %d hits, %d misses", entries.size(), weight,
+            hits, misses);
+    }
+}
@@ -0,0 +1,447 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * A pack: many objects consolidated into one .pack file plus a sorted .idx written by gc.
+ *
+ * <p>The .pack file is "PACK", a version and an object count, followed by each object's
+ * compressed loose encoding (see LooseObject) back to back, and a SHA1 trailer. The .idx file is
+ * "GIDX", a version and the count, a 256-entry fan-out table of cumulative counts by first id
+ * byte, the sorted raw 20-byte ids, one type byte per object, the offset and length of each
+ * object in the pack, and a SHA1 trailer. The .idx is read through a MappedByteBuffer, so finding
+ * an object is a fan-out lookup plus a binary search over the mapped ids. Blobs may be packed as
+ * deltas against an earlier version of the same path (see Delta).
+ *
+ * @author Jialin Shi
+ */
+class PackFile {
+
+    private static final int PACK_MAGIC = 0x5041434b;
+    private static final int IDX_MAGIC = 0x47494458;
+    private static final int VERSION = 1;
+    private static final int ID_BYTES = 20;
+    private static final int FANOUT_START = 12;
+    private static final int IDS_START = FANOUT_START + 256 * 4;
+
+    /**
+     * object types in the order of their type byte in the idx
+     */
+    private static final List<String> TYPES = List.of("commit", Blob.BLOB_TYPE,
+        Delta.DELTA_TYPE, Tree.TREE_TYPE);
+
+    /**
+     * packs in PACKFOLDER, loaded on first use
+     */
+    private static List<PackFile> packs;
+
+    /**
+     * the .pack file
+     */
+    private final File pack;
+
+    /**
+     * the .idx file
+     */
+    private final File index;
+
+    /**
+     * the mapped contents of the .idx file
+     */
+    private final MappedByteBuffer idx;
+
+    /**
+     * number of objects in this pack
+     */
+    private final int count;
+
+    private PackFile(File pack, File index) throws IOException {
+        this.pack = pack;
+        this.index = index;
+        try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ)) {
+            idx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != VERSION) {
+            throw error("Corrupt pack index %s.", index.getName());
+        }
+        count = idx.getInt(8);
+    }
+
+    private int typesStart() {
+        return IDS_START + count * ID_BYTES;
+    }
+
+    private int offsetsStart() {
+        return typesStart() + count;
+    }
+
+    private int lengthsStart() {
+        return offsetsStart() + count * 8;
+    }
+
+    /**
+     * all packs of this repository
+     */
+    private static synchronized List<PackFile> getPacks() {
+        if (packs == null) {
+            List<PackFile> loaded = new ArrayList<>();
+            List<String> names = plainFilenamesIn(Repository.PACKFOLDER);
+            if (names != null) {
+                for (String name : names) {
+                    if (!name.endsWith(".idx")) {
+                        continue;
+                    }
+                    String base = name.substring(0, name.length() - ".idx".length());
+                    try {
+                        loaded.add(new PackFile(join(Repository.PACKFOLDER, base + ".pack"),
+                            join(Repository.PACKFOLDER, name)));
+                    } catch (IOException excp) {
+                        throw new IllegalArgumentException(excp.getMessage());
+                    }
+                }
+            }
+            packs = loaded;
+        }
+        return packs;
+    }
+
+    /**
+     * convert a full hexadecimal id into its 20 raw bytes
+     *
+     * @return the raw id, or null if ID is not 40 hexadecimal digits
+     */
+    static byte[] toRawId(String id) {
+        if (id.length() != UID_LENGTH) {
+            return null;
+        }
+        byte[] raw = new byte[ID_BYTES];
+        for (int i = 0; i < ID_BYTES; i += 1) {
+            int high = Character.digit(id.charAt(2 * i), 16);
+            int low = Character.digit(id.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            raw[i] = (byte) ((high << 4) | low);
+        }
+        return raw;
+    }
+
+    private String idAt(int i) {
+        byte[] raw = new byte[ID_BYTES];
+        idx.get(IDS_START + i * ID_BYTES, raw);
+        return toHex(raw);
+    }
+
+    /**
+     * compare the id at position I with RAW as unsigned bytes
+     */
+    private int compareAt(int i, byte[] raw) {
+        int base = IDS_START + i * ID_BYTES;
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            int cmp = Integer.compare(idx.get(base + k) & 0xff, raw[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * position of the first id not less than RAW
+     */
+    private int lowerBound(byte[] raw) {
+        int first = raw[0] & 0xff;
+        int lo = first == 0 ? 0 : idx.getInt(FANOUT_START + (first - 1) * 4);
+        int hi = idx.getInt(FANOUT_START + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, raw) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * position of object ID in this pack, or -1
+     */
+    private int find(String id) {
+        byte[] raw = toRawId(id);
+        if (raw == null) {
+            return -1;
+        }
+        int i = lowerBound(raw);
+        if (i < count && compareAt(i, raw) == 0) {
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * type of the object at position I, counting a delta as the blob it describes
+     */
+    private String typeAt(int i) {
+        String type = TYPES.get(idx.get(typesStart() + i));
+        return type.equals(Delta.DELTA_TYPE) ? Blob.BLOB_TYPE : type;
+    }
+
+    private InputStream openEntry(int i) throws IOException {
+        long offset = idx.getLong(offsetsStart() + i * 8);
+        FileChannel channel = FileChannel.open(pack.toPath(), StandardOpenOption.READ);
+        channel.position(offset);
+        return Channels.newInputStream(channel);
+    }
+
+    /**
+     * Tell whether some pack holds the object ID.
+     */
+    static boolean contains(String id) {
+        for (PackFile packFile : getPacks()) {
+            if (packFile.find(id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Open object ID of TYPE from whichever pack holds it.
+     *
+     * @return the inflating object, or null if no pack holds it
+     */
+    static LooseObject open(String id, String type) throws IOException {
+        for (PackFile packFile : getPacks()) {
+            int i = packFile.find(id);
+            if (i >= 0) {
+                return LooseObject.open(packFile.openEntry(i), type, id);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All packed ids of TYPE that start with the hexadecimal PREFIX.
+     */
+    static List<String> idsWithPrefix(String prefix, String type) {
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < UID_LENGTH) {
+            padded.append('0');
+        }
+        byte[] low = toRawId(padded.toString());
+        List<String> found = new ArrayList<>();
+        if (low == null) {
+            return found;
+        }
+        for (PackFile packFile : getPacks()) {
+            for (int i = packFile.lowerBound(low); i < packFile.count; i += 1) {
+                String id = packFile.idAt(i);
+                if (!id.startsWith(prefix)) {
+                    break;
+                }
+                if (packFile.typeAt(i).equals(type)) {
+                    found.add(id);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * All packed ids of TYPE.
+     */
+    static List<String> allIds(String type) {
+        return idsWithPrefix("", type);
+    }
+
+    /**
+     * Write every object in LOOSE (id to loose file) and every object already in a pack into one
+     * new pack, then drop the old packs. Whole blobs in DELTABASES (blob id to the previous
+     * version of the same path) are stored as deltas when that pays off. Loose files are left for
+     * the caller to delete once this returns.
+     */
+    static void repack(Map<String, File> loose, Map<String, String> deltaBases) {
+        Map<String, PackFile> packed = new TreeMap<>();
+        for (PackFile packFile : getPacks()) {
+            for (int i = 0; i < packFile.count; i += 1) {
+                packed.putIfAbsent(packFile.idAt(i), packFile);
+            }
+        }
+        TreeMap<String, Object> sources = new TreeMap<>(packed);
+        sources.putAll(loose);
+        try {
+            for (Map.Entry<String, byte[]> delta : Delta.packDeltas(deltaBases).entrySet()) {
+                sources.put(delta.getKey(), LooseObject.encode(Delta.DELTA_TYPE,
+                    delta.getValue()));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        File folder = Repository.PACKFOLDER;
+        if (!folder.exists()) {
+            folder.mkdir();
+        }
+        String name = "pack-" + sha1(String.join("", sources.keySet()));
+        File packTemp = join(folder, name + ".pack.tmp");
+        File idxTemp = join(folder, name + ".idx.tmp");
+        int n = sources.size();
+        byte[] types = new byte[n];
+        long[] offsets = new long[n];
+        long[] lengths = new long[n];
+        try {
+            MessageDigest md = newSha1Digest();
+            DigestOutputStream digestOut = new DigestOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(packTemp.toPath()), BUFFER_SIZE),
+                md);
+            try (DataOutputStream out = new DataOutputStream(digestOut)) {
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(n);
+                long position = 12;
+                int i = 0;
+                for (Map.Entry<String, Object> entry : sources.entrySet()) {
+                    String id = entry.getKey();
+                    try (LooseObject object = LooseObject.open(
+                        openSource(id, entry.getValue()), null, id)) {
+                        types[i] = (byte) TYPES.indexOf(object.getType());
+                    }
+                    try (InputStream in = openSource(id, entry.getValue())) {
+                        offsets[i] = position;
+                        lengths[i] = in.transferTo(out);
+                        position += lengths[i];
+                    }
+                    i += 1;
+                }
+                out.flush();
+                digestOut.on(false);
+                out.write(md.digest());
+            }
+            writeIndex(idxTemp, sources.keySet().toArray(new String[0]), types, offsets,
+                lengths);
+            // the new pack is on disk before the old ones and the loose objects go
+            File packFile = join(folder, name + ".pack");
+            WriteBatch.replace(packTemp, packFile);
+            WriteBatch.replace(idxTemp, join(folder, name + ".idx"));
+            for (PackFile old : getPacks()) {
+                if (!old.pack.equals(packFile)) {
+                    old.pack.delete();
+                    old.index.delete();
+                }
+            }
+        } catch (IOException | IllegalArgumentException excp) {
+            packTemp.delete();
+            idxTemp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        packs = null;
+    }
+
+    /**
+     * raw compressed bytes of object ID, read from a loose file, an existing pack, or memory
+     */
+    private static InputStream openSource(String id, Object source) throws IOException {
+        if (source instanceof byte[]) {
+            return new ByteArrayInputStream((byte[]) source);
+        }
+        if (source instanceof File) {
+            return Files.newInputStream(((File) source).toPath());
+        }
+        PackFile packFile = (PackFile) source;
+        int i = packFile.find(id);
+        long length = packFile.idx.getLong(packFile.lengthsStart() + i * 8);
+        InputStream in = packFile.openEntry(i);
+        return new InputStream() {
+            private long left = length;
+
+            @Override
+            public int read() throws IOException {
+                if (left <= 0) {
+                    return -1;
+                }
+                left -= 1;
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (left <= 0) {
+                    return -1;
+                }
+                int n = in.read(b, off, (int) Math.min(len, left));
+                if (n > 0) {
+                    left -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    private static void writeIndex(File file, String[] ids, byte[] types, long[] offsets,
+        long[] lengths) throws IOException {
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        MessageDigest md = newSha1Digest();
+        DigestOutputStream digestOut = new DigestOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE), md);
+        try (DataOutputStream out = new DataOutputStream(digestOut)) {
+            out.writeInt(IDX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            int total = 0;
+            for (int bucket : fanout) {
+                total += bucket;
+                out.writeInt(total);
+            }
+            for (String id : ids) {
+                out.write(toRawId(id));
+            }
+            out.write(types);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            for (long length : lengths) {
+                out.writeLong(length);
+            }
+            out.flush();
+            digestOut.on(false);
+            out.write(md.digest());
+        }
+    }
+
+    /**
+     * forget loaded packs, so the next lookup sees the packs on disk
+     */
+    static synchronized void reload() {
+        packs = null;
+    }
+}
@@ -1,16 +1,31 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 
 import static gitlet.AdditionalUtils.*;
@@ -38,7 +53,7 @@ public class Repository {
     /**
      * The current working directory.
      */
-    private static final File CWD = new File(System.getProperty("user.dir"));
+    static final File CWD = new File(System.getProperty("user.dir"));
     /**
      * The .gitlet directory.
      */
@@ -51,6 +66,14 @@ public class Repository {
      * The blob directory stores blob
      */
     public static final File BLOBFOLDER = join(GITLETFOLDER, "blobs");
+    /**
+     * The tree directory stores trees, one per directory of a snapshot
+     */
+    public static final File TREEFOLDER = join(GITLETFOLDER, "trees");
+    /**
+     * The pack directory stores packs written by gc
+     */
+    public static final File PACKFOLDER = join(GITLETFOLDER, "packs");
     /**
      * the refs directory
      */
@@ -68,6 +91,67 @@ public class Repository {
      */
     private static final File HEAD = join(GITLETFOLDER, "HEAD");
 
+    /**
+     * the commit-graph file, see CommitGraph
+     */
+    public static final File COMMIT_GRAPH = join(GITLETFOLDER, "commit-graph");
+
+    /**
+     * the journal of all commit ids, see CommitJournal
+     */
+    public static final File COMMIT_JOURNAL = join(GITLETFOLDER, "commit-journal");
+
+    /**
+     * the sorted index of commit ids, see CommitIdIndex
+     */
+    public static final File COMMIT_IDS = join(GITLETFOLDER, "commit-ids");
+
+    /**
+     * the socket of the daemon serving this repository, see Daemon
+     */
+    public static final File DAEMON_SOCKET = join(GITLETFOLDER, "daemon.sock");
+
+    /**
+     * the folder of the commit message index, see MessageIndex
+     */
+    public static final File MESSAGEFOLDER = join(GITLETFOLDER, "messages");
+
+    /**
+     * the folder of files written but not published yet, see WriteBatch
+     */
+    public static final File TMPFOLDER = join(GITLETFOLDER, "tmp");
+
+    /**
+     * present while a repository of the first layout is being upgraded, see Migration
+     */
+    public static final File UPGRADE_MARKER = join(GITLETFOLDER, "upgrading");
+
+
+    /**
+     * contents of the ref files (HEAD and branch heads) read or written during a batch, by path
+     */
+    private static Map<File, String> refCache;
+
+    /**
+     * Keep the contents of ref files in memory while CACHE is true. Writes still go to disk.
+     */
+    static void cacheRefs(boolean cache) {
+        refCache = cache ? new HashMap<>() : null;
+    }
+
+    private static String readRef(File ref) {
+        if (refCache == null) {
+            return WriteBatch.readRef(ref);
+        }
+        return refCache.computeIfAbsent(ref, WriteBatch::readRef);
+    }
+
+    private static void writeRef(File ref, String contents) {
+        WriteBatch.writeRef(ref, contents);
+        if (refCache != null) {
+            refCache.put(ref, contents);
+        }
+    }
 
     /**
      * Set Head branch. write fullPathBranch into HEAD FILE. Example -- HEAD file: "ref:refs/heads/"
@@ -77,7 +161,7 @@ public class Repository {
      */
     private static void setHeadBranch(String branchName) {
         String fullPath = HEAD_BRANCH_PREFIX + branchName;
-        writeContents(HEAD, fullPath);
+        writeRef(HEAD, fullPath);
     }
 
     /**
@@ -87,7 +171,7 @@ public class Repository {
      * @return clean string branchName without prefix, "master"
      */
     public static String getHeadBranchName() {
-        String fullCurrentBranch = readContentsAsString(HEAD);
+        String fullCurrentBranch = readRef(HEAD);
         String branchName = fullCurrentBranch.replace(HEAD_BRANCH_PREFIX, "");
         return branchName;
     }
@@ -101,7 +185,7 @@ public class Repository {
     public static Commit getHeadCommit() {
         String branchName = getHeadBranchName();
         File headFile = join(HEADSFOLDER, branchName);
-        String headCommitSHA1 = readContentsAsString(headFile);
+        String headCommitSHA1 = readRef(headFile);
         Commit returnCommit = Commit.fromFile(headCommitSHA1);
         return returnCommit;
     }
@@ -119,7 +203,7 @@ public class Repository {
     }
 
     private static Commit getBranchHeadCommit(File branchFile) {
-        String branchHeadCommitID = readContentsAsString(branchFile);
+        String branchHeadCommitID = readRef(branchFile);
         return Commit.fromFile(branchHeadCommitID);
     }
 
@@ -129,7 +213,7 @@ public class Repository {
     }
 
     private static void setBranchHeadCommit(File branchHeadFile, String commitID) {
-        writeContents(branchHeadFile, commitID);
+        writeRef(branchHeadFile, commitID);
     }
 
 
@@ -139,7 +223,7 @@ public class Repository {
     private static void setHeadCommit(String commitSHA1) {
         String branchName = getHeadBranchName();
         File file = join(HEADSFOLDER, branchName);
-        writeContents(file, commitSHA1);
+        writeRef(file, commitSHA1);
     }
 
 
@@ -151,14 +235,17 @@ public class Repository {
         GITLETFOLDER.mkdir();
         COMMITFOLDER.mkdir();
         BLOBFOLDER.mkdir();
+        TREEFOLDER.mkdir();
         REFSFOLDER.mkdir();
         HEADSFOLDER.mkdir();
+        MessageIndex.create();
     }
 
     public static void checkCWD() {
         if (!(GITLETFOLDER.exists() && GITLETFOLDER.isDirectory())) {
             exit("Not in an initialized Gitlet directory.");
         }
+        Migration.upgradeIfNeeded();
     }
 
     public static void init() {
@@ -168,7 +255,7 @@ public class Repository {
         }
         setupPersistance();
         Commit initial = new Commit();
-        initial.saveCommit();
+        recordCommit(initial);
         setHeadBranch(MASTER_BRANCH_NAME);
         initialCommitToMasterBranch(initial);
     }
@@ -178,68 +265,159 @@ public class Repository {
      */
     private static void initialCommitToMasterBranch(Commit initial) {
         File newFile = join(HEADSFOLDER, MASTER_BRANCH_NAME);
-        writeContents(newFile, initial.getCommitSHA1());
+        writeRef(newFile, initial.getCommitSHA1());
+    }
+
+    /**
+     * add files to staging area. Each of fileNames is a file, a directory whose files are all
+     * added (so "." adds the whole working tree), or a glob matched against paths relative to
+     * CWD. The index is read and written once for all of them.
+     */
+    public static void add(String... fileNames) {
+        Set<File> files = new LinkedHashSet<>();
+        for (String fileName : fileNames) {
+            collectFiles(fileName, files);
+        }
+        StagingArea stagingArea = getStagingArea();
+        if (stagingArea.addAll(new ArrayList<>(files))) {
+            stagingArea.saveStaging();
+        }
+    }
+
+    private static boolean isGlob(String fileName) {
+        return fileName.indexOf('*') >= 0 || fileName.indexOf('?') >= 0
+            || fileName.indexOf('[') >= 0 || fileName.indexOf('{') >= 0;
     }
 
     /**
-     * add file to staging area.
+     * add the files named by fileName to files, exiting if there are none
      */
-    public static void add(String fileName) {
+    private static void collectFiles(String fileName, Set<File> files) {
         File newFile = getFilePathFromCWD(fileName);
+        if (!newFile.exists() && isGlob(fileName)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + fileName);
+            int before = files.size();
+            walkFiles(CWD, file -> matcher.matches(CWD.toPath().relativize(file.toPath())),
+                files);
+            if (files.size() == before) {
+                exit("File does not exist.");
+            }
+            return;
+        }
         if (!newFile.exists()) {
             exit("File does not exist.");
         }
-        StagingArea stagingArea = getStagingArea();
-        if (stagingArea.add(newFile)) {
-            stagingArea.saveStaging();
+        if (newFile.isDirectory()) {
+            if (!newFile.toPath().startsWith(CWD.toPath())) {
+                exit("File is outside the repository.");
+            }
+            walkFiles(newFile, file -> true, files);
+            return;
+        }
+        if (relativePath(newFile.getPath()) == null) {
+            exit("File is outside the repository.");
         }
+        files.add(newFile);
     }
 
     /**
-     * pull stagingArea if exists. if not create new one with HeadCommit tracked Map
+     * add every regular file under dir accepted by filter to files, skipping .gitlet
+     */
+    private static void walkFiles(File dir, Predicate<File> filter, Set<File> files) {
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                    return path.equals(GITLETFOLDER.toPath()) ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    File file = path.toFile();
+                    if (attrs.isRegularFile() && filter.test(file)) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * pull stagingArea if exists. if not create new one. Either way it looks tracked files up in
+     * the HeadCommit snapshot.
      *
      * @return StagingArea
      */
     public static StagingArea getStagingArea() {
         StagingArea stagingArea;
 
-        if (INDEX.exists()) {
+        if (StagingArea.exists()) {
             stagingArea = StagingArea.fromFile();
         } else {
             stagingArea = new StagingArea();
         }
-        Map<String, String> newTracked = getHeadCommit().getTracked();
-        stagingArea.setTracked(newTracked);
+        stagingArea.setHead(getHeadCommit());
         return stagingArea;
     }
 
     /**
      * create file path. Check if fileName is absolute or not.
      *
-     * @return a file
+     * @return a normalized file
      */
     private static File getFilePathFromCWD(String fileName) {
         if (Paths.get(fileName).isAbsolute()) {
-            return new File(fileName);
+            return Paths.get(fileName).normalize().toFile();
         } else {
-            return join(CWD, fileName);
+            return join(CWD, fileName).toPath().normalize().toFile();
         }
     }
 
     /**
-     * Get a map of file paths and their Blob shaID in CWD.
+     * Convert a file path as stored in the staging area into a path relative to CWD, with '/' as
+     * separator, as stored in trees.
      *
-     * @return a map
+     * @return the relative path, or null if filePath is not inside CWD
      */
-    private static Map<String, String> getCWDFileMap() {
-        Map<String, String> map = new HashMap<>();
-        File[] fileNames = CWD.listFiles(File::isFile);
-        for (File file : fileNames) {
-            String fp = file.getPath();
-            String blobID = Blob.generateBlobSHA1(file);
-            map.put(fp, blobID);
+    public static String relativePath(String filePath) {
+        Path path = Paths.get(filePath).normalize();
+        if (!path.startsWith(CWD.toPath()) || path.equals(CWD.toPath())) {
+            return null;
         }
-        return map;
+        return CWD.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Convert a path relative to CWD, as stored in trees, back into a file path.
+     */
+    public static String absolutePath(String relativePath) {
+        return join(CWD, relativePath.split("/")).getPath();
+    }
+
+    /**
+     * Get the files in CWD and its subdirectories, the same ones add accepts for a directory,
+     * skipping .gitlet.
+     *
+     * @return a list of the files
+     */
+    static List<File> getCWDFiles() {
+        Set<File> files = new LinkedHashSet<>();
+        walkFiles(CWD, file -> true, files);
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Hash FILES in parallel, across all cores, through the stat cache of stagingArea.
+     *
+     * @return a map of file paths and their Blob shaID
+     */
+    static Map<String, String> hashFiles(Collection<File> files, StagingArea stagingArea) {
+        return files.parallelStream().collect(Collectors.toConcurrentMap(File::getPath,
+            stagingArea::hashFile));
     }
 
     /**
@@ -251,10 +429,10 @@ public class Repository {
         if (stagingArea.isClean()) {
             exit("No changes added to the commit.");
         }
-        Map<String, String> tracked = stagingArea.commit();
+        Map<String, String> changes = stagingArea.commit();
         stagingArea.saveStaging();
-        Commit newCommit = createNewCommit(message, tracked);
-        newCommit.saveCommit();
+        Commit newCommit = createNewCommit(message, changes);
+        recordCommit(newCommit);
         setHeadCommit(newCommit.getCommitSHA1());
     }
 
@@ -268,41 +446,61 @@ public class Repository {
         if (stagingArea.isClean()) {
             exit("No changes added to the commit.");
         }
-        Map<String, String> tracked = stagingArea.commit();
+        Map<String, String> changes = stagingArea.commit();
         stagingArea.saveStaging();
-        Commit newCommit = createMergedCommit(message, tracked, mergedCommitId);
-        newCommit.saveCommit();
+        Commit newCommit = createMergedCommit(message, changes, mergedCommitId);
+        recordCommit(newCommit);
         setHeadCommit(newCommit.getCommitSHA1());
     }
 
     /**
-     * create a new commit with HeadCommitID as parent,new message, and tracked map returned by
-     * stagingArea.commit()
+     * Save a new commit and add it to the commit journal, the commit graph and the message index
+     * once the commit object is in place. A commit made again with the same parent, tree, message
+     * and timestamp has the same id as the first one and is already recorded.
+     */
+    private static void recordCommit(Commit newCommit) {
+        if (newCommit.isSaved()) {
+            return;
+        }
+        newCommit.saveCommit();
+        WriteBatch.afterObjects(() -> {
+            CommitJournal.add(newCommit.getCommitSHA1());
+            CommitGraph.add(newCommit);
+            MessageIndex.add(newCommit.getMessage(), newCommit.getCommitSHA1());
+        });
+    }
+
+    /**
+     * create a new commit with HeadCommitID as parent,new message, and the head snapshot updated
+     * with the changes returned by stagingArea.commit(). Only the trees on changed paths are
+     * written.
      *
      * @return new commit
      */
-    private static Commit createNewCommit(String message, Map<String, String> tracked) {
+    private static Commit createNewCommit(String message, Map<String, String> changes) {
         Commit headCommit = getHeadCommit();
         List<String> parent = new ArrayList<>();
         parent.add(headCommit.getCommitSHA1());
-        Commit newCommit = new Commit(message, parent, tracked);
+        String tree = Tree.updateRoot(headCommit.getTree(), changes);
+        Commit newCommit = new Commit(message, parent, tree);
         return newCommit;
     }
 
     /**
      * similar to create new commit, add second parent id into the commit.
      * @param message
-     * @param tracked
+     * @param changes
      * @param secondParentId
      * @return
      */
-    private static Commit createMergedCommit(String message, Map<String, String> tracked,
+    private static Commit createMergedCommit(String message, Map<String, String> changes,
         String secondParentId) {
         Commit headCommit = getHeadCommit();
         List<String> parent = new ArrayList<>();
         parent.add(headCommit.getCommitSHA1());
         parent.add(secondParentId);
-        Commit newCommit = new Commit(message, parent, tracked);
+        String tree = Tree.updateRoot(headCommit.getTree(), changes);
+        Commit newCommit = new Commit(message, parent, tree);
         return newCommit;
     }
 
@@ -333,56 +531,234 @@ public class Repository {
         System.out.print(log);
     }
 
+    /**
+     * print the log of every commit in the order they were made. Entries are written out as the
+     * commit journal is read, so the output never has to be held in memory.
+     */
     public static void globalLog() {
-        StringBuilder log = new StringBuilder();
-        String[] commitIDs = getAllCommitId();
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, BUFFER_SIZE),
+            false);
+        CommitJournal.forEach(commitID -> {
+            out.print(Commit.fromFile(commitID).getLog());
+            out.print("\n");
+        });
+        out.println();
+        out.flush();
+    }
 
-        for (String commitID : commitIDs) {
-            Commit commit = Commit.fromFile(commitID);
-            log.append(commit.getLog()).append("\n");
+    /**
+     * print the ids of all commits with the given message, as recorded in the MessageIndex
+     */
+    public static void find(String message) {
+        StringBuilder messageMatched = new StringBuilder();
+        for (String commitID : MessageIndex.find(message)) {
+            messageMatched.append(commitID).append("\n");
         }
-        System.out.println(log);
+        if (messageMatched.length() == 0) {
+            exit("Found no commit with that message.");
+        }
+        System.out.println(messageMatched);
     }
 
+    /**
+     * pull the string array of all Commit id, in the order they were made.
+     * @return
+     */
+    static String[] getAllCommitId() {
+        return CommitJournal.ids().toArray(new String[0]);
+    }
 
-    public static void find(String message) {
-        StringBuilder messageMatched = new StringBuilder();
+    /**
+     * Find the id of every Commit by listing the loose commits and the packs. Used to write the
+     * commit journal of a repository that has none.
+     * @return
+     */
+    static String[] scanCommitIds() {
+        Set<String> commitFullSHAs = new HashSet<>(getLooseObjects(COMMITFOLDER).keySet());
+        commitFullSHAs.addAll(PackFile.allIds("commit"));
+        return commitFullSHAs.toArray(new String[0]);
+    }
+
+    /**
+     * Map the id of every loose object in the fan-out directory FOLDER to its file.
+     * @param folder COMMITFOLDER or BLOBFOLDER
+     * @return
+     */
+    static Map<String, File> getLooseObjects(File folder) {
+        Map<String, File> objects = new HashMap<>();
+        String[] shaDirs = folder.list();
+        if (shaDirs == null) {
+            return objects;
+        }
+        for (String shaDir : shaDirs) {
+            String[] fileNames = join(folder, shaDir).list();
+            if (fileNames == null) {
+                continue;
+            }
+            for (String fileName : fileNames) {
+                if (shaDir.length() + fileName.length() == UID_LENGTH) {
+                    objects.put(shaDir + fileName, join(folder, shaDir, fileName));
+                }
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Consolidate all loose commits and blobs, and any earlier packs, into a single pack, then
+     * delete the loose copies. A blob that replaced another one at the same path in some commit
+     * is offered to the pack as a delta against that previous version. Commits still in the
+     * legacy Java serialized encoding are rewritten in the current one first, and temporary files
+     * left behind by an interrupted command are removed.
+     */
+    public static void gc() {
         String[] commitIDs = getAllCommitId();
-        if (commitIDs.length == 0) {
-            exit("Found no commit with that message.");
+        Arrays.sort(commitIDs);
+        for (String commitID : commitIDs) {
+            Commit.migrate(commitID); // loose again, so the new pack holds the new encoding
         }
+        WriteBatch.checkpoint();
+        Map<String, File> looseCommits = getLooseObjects(COMMITFOLDER);
+        Map<String, String> deltaBases = new HashMap<>();
         for (String commitID : commitIDs) {
             Commit commit = Commit.fromFile(commitID);
-            if (commit.getMessage().equals(message)) {
-                messageMatched.append(commitID).append("\n");
+            if (commit.getParent().isEmpty()) {
+                continue;
+            }
+            Commit previous = Commit.fromFile(commit.getParent().get(0));
+            for (String[] change : Tree.diff(previous.getTree(), commit.getTree()).values()) {
+                if (change[0] != null && change[1] != null) {
+                    deltaBases.putIfAbsent(change[1], change[0]);
+                }
             }
         }
-        if (messageMatched.length() == 0) {
-            exit("Found no commit with that message.");
+        Map<String, File> loose = new HashMap<>(looseCommits);
+        loose.putAll(getLooseObjects(BLOBFOLDER));
+        loose.putAll(getLooseObjects(TREEFOLDER));
+        PackFile.repack(loose, deltaBases);
+        for (File file : loose.values()) {
+            file.delete();
+            file.getParentFile().delete();
+        }
+        File[] leftovers = TMPFOLDER.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
         }
-        System.out.println(messageMatched);
     }
 
     /**
-     * pull the string array of all Commit id.
-     * @return
+     * Print a unified diff of the tracked files: from the index (the head commit with the staged
+     * changes) to the working files when COMMITIDS is empty, from one commit to the working
+     * files, or from one commit to another. PATHS, if any, limit it to those files and
+     * directories. Files are compared by blob id first and only the differing ones are read.
      */
-    private static String[] getAllCommitId() {
-        Set<String> commitFullSHAs = new HashSet<>();
-        String[] commitDirs = COMMITFOLDER.list();
-        if (commitDirs == null) {
-            return new String[0];
+    public static void diff(String[] commitIds, String[] paths) {
+        StagingArea stagingArea = getStagingArea();
+        Commit[] commits = new Commit[commitIds.length];
+        for (int i = 0; i < commitIds.length; i += 1) {
+            commits[i] = getCommitWithShorterUID(commitIds[i]);
+            if (commits[i] == null) {
+                exit("No commit with that id exists.");
+            }
         }
-        for (String shaDir : commitDirs) {
-            String[] commitFileNames = join(COMMITFOLDER, shaDir).list();
-            if (commitFileNames == null) {
+        List<String> prefixes = new ArrayList<>();
+        for (String path : paths) {
+            File file = getFilePathFromCWD(path);
+            if (file.equals(CWD)) {
+                prefixes.clear();
+                break;
+            }
+            String relativePath = relativePath(file.getPath());
+            if (relativePath == null) {
+                exit("File is outside the repository.");
+            }
+            prefixes.add(relativePath);
+        }
+        Map<String, String[]> changes = commits.length == 2
+            ? Tree.diff(commits[0].getTree(), commits[1].getTree())
+            : workingChanges(commits.length == 1 ? commits[0] : null, stagingArea, prefixes);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, BUFFER_SIZE),
+            false);
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            String path = change.getKey();
+            String[] ids = change.getValue();
+            if (!prefixes.isEmpty() && !inPaths(path, prefixes)) {
                 continue;
             }
-            for (String fileName : commitFileNames) {
-                commitFullSHAs.add(shaDir + fileName);
+            byte[] newContent = commits.length == 2 ? readBlob(ids[1])
+                : readWorkingFile(absolutePath(path), ids[1]);
+            Diff.writeFile(path, ids[0], ids[1], readBlob(ids[0]), newContent, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Compare the working files with the snapshot of COMMIT, or with the index if COMMIT is
+     * null. The files compared are the tracked ones of either, limited to PREFIXES if any.
+     *
+     * @return every relative path whose blob differs, mapped to {blob in the snapshot, blob of
+     *     the working file} with null for a side that does not have the file
+     */
+    private static Map<String, String[]> workingChanges(Commit commit, StagingArea stagingArea,
+        List<String> prefixes) {
+        Map<String, String> index = stagingArea.getHead().getTracked();
+        index.keySet().removeAll(stagingArea.getRemovedStagingFile());
+        index.putAll(stagingArea.getAddedStagingFile());
+        Map<String, String> before = commit == null ? index : commit.getTracked();
+        Set<String> filePaths = new HashSet<>(index.keySet());
+        filePaths.addAll(before.keySet());
+        filePaths.removeIf(filePath -> !prefixes.isEmpty()
+            && !inPaths(relativePath(filePath), prefixes));
+        WorkingTree workingTree = new WorkingTree(stagingArea);
+        Map<String, String> after = workingTree.blobIds(filePaths);
+        stagingArea.saveStaging(); // keep the stat data of the files just hashed
+        Map<String, String[]> changes = new TreeMap<>();
+        for (String filePath : filePaths) {
+            String blobBefore = before.get(filePath);
+            String blobAfter = after.get(filePath);
+            if (blobBefore == null ? blobAfter != null : !blobBefore.equals(blobAfter)) {
+                changes.put(relativePath(filePath), new String[]{blobBefore, blobAfter});
             }
         }
-        return commitFullSHAs.toArray(new String[0]);
+        return changes;
+    }
+
+    /**
+     * Tell whether the relative PATH is one of PREFIXES or inside one of them.
+     */
+    private static boolean inPaths(String path, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (path.equals(prefix) || path.startsWith(prefix + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the content of the blob BLOBID, empty if it is null
+     */
+    private static byte[] readBlob(String blobId) {
+        if (blobId == null) {
+            return new byte[0];
+        }
+        try {
+            return Blob.fromFile(blobId).readContents();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * the content of the working file FILEPATH, empty if BLOBID is null as it is gone
+     */
+    private static byte[] readWorkingFile(String filePath, String blobId) {
+        if (blobId == null) {
+            return new byte[0];
+        }
+        return readContents(new File(filePath));
     }
 
     public static void status() {
@@ -409,40 +785,27 @@ public class Repository {
     }
 
     /**
-     * if Commitid is less than 40 digits, return the commit using short UID if there exists one and only one commit with that uid.
+     * Resolve a commit id, which may be abbreviated to as few as 4 characters, through the
+     * CommitIdIndex. An ambiguous prefix is reported together with the commits it matches.
      * @param commitId
-     * @return
+     * @return the commit, or null if there is no commit with a full commitId
      */
     public static Commit getCommitWithShorterUID(String commitId) {
-        Commit foundCommit;
         if (commitId.length() < UID_LENGTH) {
             if (commitId.length() < 4) {
                 exit("Commit id should contain at least 4 characters.");
             }
-            String dir = getShaDir(commitId);
-            File dirFile = join(COMMITFOLDER, dir);
-            if (!dirFile.exists()) {
+            List<String> candidates = CommitIdIndex.resolve(commitId);
+            if (candidates.isEmpty()) {
                 exit("No commit with that id exists.");
             }
-            boolean isFound = false;
-            String shortFileName = getShaFileName(commitId);
-            for (File file : dirFile.listFiles()) {
-                String longFileName = file.getName();
-                if (longFileName.startsWith(shortFileName)) {
-                    if (isFound) {
-                        exit("More than 1 commit has the same id prefix.");
-                    } else {
-                        commitId = dir + longFileName;
-                        isFound = true;
-                    }
-                }
-            }
-            if (!isFound) {
-                exit("No commit with that id exists.");
+            if (candidates.size() > 1) {
+                exit("More than 1 commit has the same id prefix.\n"
+                    + String.join("\n", candidates));
             }
+            commitId = candidates.get(0);
         }
-        foundCommit = Commit.fromFile(commitId);
-        return foundCommit;
+        return Commit.fromFile(commitId);
     }
 
 
@@ -456,27 +819,29 @@ public class Repository {
         }
 
         Commit branchHeadCommit = getBranchHeadCommit(branchName);
-        untrackedFileExists(branchHeadCommit); // check if status is clean
-        restoreBranchCommit(branchHeadCommit);
+        StagingArea stagingArea = getStagingArea();
+        WorkingTree workingTree = new WorkingTree(stagingArea);
+        // check if status is clean
+        untrackedFileExists(branchHeadCommit, stagingArea, workingTree);
+        restoreBranchCommit(branchHeadCommit, stagingArea, workingTree);
         setHeadBranch(branchName);
     }
 
 
     /**
-     * check if untrackedFile exists exit with Message if there found untrackedFiles
+     * check if untrackedFile exists exit with Message if there found untrackedFiles. Only the
+     * untracked files of workingTree are hashed.
      */
-    private static void untrackedFileExists(Commit branchCommit) {
-        StagingArea stagingArea = getStagingArea();
-
-        Map<String, String> cwdFiles = getCWDFileMap();
-        Map<String, String> tracked = getHeadCommit().getTracked();
+    private static void untrackedFileExists(Commit branchCommit, StagingArea stagingArea,
+        WorkingTree workingTree) {
+        Commit headCommit = stagingArea.getHead();
         Map<String, String> stagedForAddition = stagingArea.getAddedStagingFile();
         Set<String> stagedForRemoval = stagingArea.getRemovedStagingFile();
 
         List<String> untrackedFile = new ArrayList<>();
 
-        for (String file : cwdFiles.keySet()) { //for each file in CWD
-            if (tracked.containsKey(file)) { //if tracked has this file
+        for (String file : workingTree.paths()) { //for each file in CWD
+            if (headCommit.getBlobId(file) != null) { //if tracked has this file
                 if (stagedForRemoval.contains(file)) { //but it is staged for removal
                     untrackedFile.add(file);
                 }
@@ -487,10 +852,9 @@ public class Repository {
             }
         }
 
-        Map<String, String> branchCommitTracked = branchCommit.getTracked();
         for (String file : untrackedFile) {
-            String blobId = getCWDFileMap().get(file);
-            String branchBlobId = branchCommitTracked.get(file);
+            String blobId = workingTree.blobId(file);
+            String branchBlobId = branchCommit.getBlobId(file);
             if (!blobId.equals(branchBlobId)) {
                 exit(
                     "There is an untracked file in the way; delete it, or add and commit it first."
@@ -500,23 +864,45 @@ public class Repository {
     }
 
     /**
-     * reset to a specified branch Commit.
+     * reset to a specified branch Commit. Only the working files that can differ from the target
+     * snapshot are touched: the paths that differ between the head and target snapshots, the
+     * staged paths, and tracked files that are missing or were changed without staging. Files
+     * that already hold the target content are left alone, so their mtimes are kept.
      * @param branchCommit
+     * @param stagingArea the current staging area, cleared and saved along with its stat data
+     * @param workingTree the snapshot of CWD taken before the untracked file check
      */
-    private static void restoreBranchCommit(Commit branchCommit) {
+    private static void restoreBranchCommit(Commit branchCommit, StagingArea stagingArea,
+        WorkingTree workingTree) {
+        Map<String, String> targetTracked = branchCommit.getTracked();
+        Map<String, String> current = workingTree.blobIds(targetTracked.keySet());
+        Set<String> paths = new HashSet<>();
+        for (String relative : Tree.diff(stagingArea.getHead().getTree(),
+            branchCommit.getTree()).keySet()) {
+            paths.add(absolutePath(relative));
+        }
+        paths.addAll(stagingArea.getAddedStagingFile().keySet());
+        paths.addAll(stagingArea.getRemovedStagingFile());
+        for (Map.Entry<String, String> entry : targetTracked.entrySet()) {
+            if (!entry.getValue().equals(current.get(entry.getKey()))) {
+                paths.add(entry.getKey());
+            }
+        }
         //Clear current StagingArea
-        StagingArea stagingArea = getStagingArea();
         stagingArea.clear();
-        stagingArea.saveStaging();
 
-        // clear CWD
-        File[] files = CWD.listFiles(File::isFile);
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+        Map<String, String> writes = new HashMap<>();
+        for (String path : paths) {
+            String blobId = targetTracked.get(path);
+            if (blobId == null) {
+                new File(path).delete();
+            } else if (!blobId.equals(current.get(path))) {
+                writes.put(path, blobId);
             }
         }
-        branchCommit.restoreAllTracked();
+        Materializer.write(writes);
+        stagingArea.pruneStatCache();
+        stagingArea.saveStaging();
     }
 
     /**
@@ -540,6 +926,9 @@ public class Repository {
             exit("Cannot remove the current branch.");
         }
         branchToRemove.delete();
+        if (refCache != null) {
+            refCache.remove(branchToRemove);
+        }
     }
 
     /**
@@ -547,13 +936,15 @@ public class Repository {
      * @param commitSHAId
      */
     public static void reset(String commitSHAId) {
-        File givenCommitFile = getObjectFile(commitSHAId);
-        if (!givenCommitFile.exists()) {
+        Commit givenCommit = getCommitWithShorterUID(commitSHAId);
+        if (givenCommit == null) {
             exit("No commit with that id exists.");
         }
-        Commit givenCommit = Commit.fromFile(commitSHAId);
-        untrackedFileExists(givenCommit);
-        restoreBranchCommit(givenCommit);
+        commitSHAId = givenCommit.getCommitSHA1();
+        StagingArea stagingArea = getStagingArea();
+        WorkingTree workingTree = new WorkingTree(stagingArea);
+        untrackedFileExists(givenCommit, stagingArea, workingTree);
+        restoreBranchCommit(givenCommit, stagingArea, workingTree);
         setHeadCommit(commitSHAId);
     }
 
@@ -583,14 +974,16 @@ public class Repository {
      * @param splitCommitID
      * @param currentHead
      * @param branchHead
+     * @param stagingArea
+     * @param workingTree the snapshot of CWD already checked for untracked files
      */
-    private static void mergeSplitCommitCheck(String branchName,
-        String splitCommitID, Commit currentHead, Commit branchHead) {
+    private static void mergeSplitCommitCheck(String branchName, String splitCommitID,
+        Commit currentHead, Commit branchHead, StagingArea stagingArea, WorkingTree workingTree) {
         if (splitCommitID.equals(branchHead.getCommitSHA1())) {
             exit("Given branch is an ancestor of the current branch.");
         }
         if (splitCommitID.equals(currentHead.getCommitSHA1())) {
-            restoreBranchCommit(branchHead);
+            restoreBranchCommit(branchHead, stagingArea, workingTree);
             setHeadBranch(branchName);
             exit("Current branch fast-forwarded.");
         }
@@ -603,70 +996,57 @@ public class Repository {
         Commit currentHead = getHeadCommit();
         Commit branchHead = getBranchHeadCommit(branchName);
 
-        untrackedFileExists(branchHead); // check if there is an untracked file
+        WorkingTree workingTree = new WorkingTree(stagingArea);
+        // check if there is an untracked file
+        untrackedFileExists(branchHead, stagingArea, workingTree);
         Commit splitCommit = findSplitCommit(currentHead, branchHead);
         String splitCommitID = splitCommit.getCommitSHA1();
-        mergeSplitCommitCheck(branchName, splitCommitID, currentHead, branchHead);
+        mergeSplitCommitCheck(branchName, splitCommitID, currentHead, branchHead, stagingArea,
+            workingTree);
 
         boolean hasConflict = false;
-        Map<String, String> splitMap = splitCommit.getTracked();
-        Map<String, String> currentHeadMap = currentHead.getTracked();
-        Map<String, String> branchHeadMap = branchHead.getTracked();
-        for (Map.Entry<String, String> file : splitMap.entrySet()) {
-            String filePath = file.getKey();
+        Map<String, String> branchVersions = new HashMap<>(); // written in parallel, then staged
+        // Every case that changes the result needs the given branch to differ from the split
+        // point, so only the paths where the two snapshots differ are visited.
+        Map<String, String[]> branchChanges = Tree.diff(splitCommit.getTree(),
+            branchHead.getTree());
+        for (Map.Entry<String, String[]> file : branchChanges.entrySet()) {
+            String filePath = absolutePath(file.getKey());
             File fileFile = new File(filePath);
-            String blobID = file.getValue();
-            String currentBlobID = currentHeadMap.get(filePath);
-            String branchBlobID = branchHeadMap.get(filePath);
-            if (currentBlobID == null) { /** A-X */
-                if (branchBlobID != null && !branchBlobID.equals(blobID)) { //case8c A-X-!A
-                    hasConflict = true;
-                    String conflictContent = getConflict(null, branchBlobID);
-                    writeContents(fileFile, conflictContent);
+            String blobID = file.getValue()[0];
+            String branchBlobID = file.getValue()[1];
+            String currentBlobID = currentHead.getBlobId(filePath);
+            if (blobID == null) { /** X-?-A */
+                if (currentBlobID == null) {
+                    branchVersions.put(filePath, branchBlobID);
+                } else if (!currentBlobID.equals(branchBlobID)) {
+                    hasConflict |= writeMerged(fileFile, null, currentBlobID, branchBlobID);
+                    stagingArea.add(fileFile);
+                }
+            } else if (currentBlobID == null) { /** A-X */
+                if (branchBlobID != null) { //case8c A-X-!A
+                    hasConflict |= writeMerged(fileFile, blobID, null, branchBlobID);
                     stagingArea.add(fileFile);
-                } // continue on case3 A-X-X && case5 A-X-A.
+                } // continue on case3 A-X-X.
             } else if (currentBlobID.equals(blobID)) { /** A-A */
                 if (branchBlobID == null) { //case4 A-A-X
                     stagingArea.remove(fileFile);
-                } else if (!branchBlobID.equals(blobID)) { //case1 A-A-!A
-                    Blob.fromFile(branchBlobID).writeBlobContentsToSource();
-                    stagingArea.add(fileFile);
+                } else { //case1 A-A-!A
+                    branchVersions.put(filePath, branchBlobID);
                 }
             } else { /** A-!A */
                 if (branchBlobID == null) { //case8b A-!A-X
-                    hasConflict = true;
-                    String conflictContent = getConflict(currentBlobID, null);
-                    writeContents(fileFile, conflictContent);
+                    hasConflict |= writeMerged(fileFile, blobID, currentBlobID, null);
                     stagingArea.add(fileFile);
-                } else if (!branchBlobID.equals(currentBlobID) && !branchBlobID.equals(
-                    blobID)) { //case8a A-!A-!!A
-                    hasConflict = true;
-                    String conflictContent = getConflict(currentBlobID, branchBlobID);
-                    writeContents(fileFile, conflictContent);
+                } else if (!branchBlobID.equals(currentBlobID)) { //case8a A-!A-!!A
+                    hasConflict |= writeMerged(fileFile, blobID, currentBlobID, branchBlobID);
                     stagingArea.add(fileFile);
-                } // Continue on case2 A-!A-A & case8d A-!A-!A
+                } // Continue on case8d A-!A-!A
             }
         }
-        for (Map.Entry<String, String> file : branchHeadMap.entrySet()) {
-            String branchFileName = file.getKey();
-            File fileFile = new File(branchFileName);
-            String branchBlobID = file.getValue();
-
-            String splitBlobID = splitMap.get(branchFileName);
-            String currentBlobID = currentHeadMap.get(branchFileName);
-
-            if (splitBlobID != null) {
-                continue;
-            }
-            if (currentBlobID == null) {
-                Blob.fromFile(branchBlobID).writeBlobContentsToSource();
-                stagingArea.add(fileFile);
-            } else if (!currentBlobID.equals(branchBlobID)) {
-                hasConflict = true;
-                String conflictContent = getConflict(currentBlobID, branchBlobID);
-                writeContents(fileFile, conflictContent);
-                stagingArea.add(fileFile);
-            }
+        Materializer.write(branchVersions);
+        for (String filePath : new TreeSet<>(branchVersions.keySet())) {
+            stagingArea.add(new File(filePath));
         }
         String mergingCommitMessage = "Merged " + branchName + " into " + getHeadBranchName() + ".";
         stagingArea.saveStaging();
@@ -677,51 +1057,34 @@ public class Repository {
     }
 
     /**
-     * Get the latest common commit of CommitA and CommitB
+     * Get the latest common commit of CommitA and CommitB, read from the commit graph. If a
+     * criss-cross history leaves several best common ancestors, the newest one is used.
      *
      * @return the latest common Commit
      */
     private static Commit findSplitCommit(Commit currentHead, Commit branchHead) {
-        Comparator<Commit> commitComparator = Comparator.comparing(
-            commit -> parseTimestamp(commit.pullTimestamp()), Comparator.reverseOrder());
-
-        Queue<Commit> commitQue = new PriorityQueue<>(commitComparator);
-        Set<String> seenCommit = new HashSet<>();
-
-        commitQue.add(currentHead);
-        commitQue.add(branchHead);
-        seenCommit.add(currentHead.getCommitSHA1());
-        seenCommit.add(branchHead.getCommitSHA1());
-
-        while (true) {
-            Commit latestCommit = commitQue.poll();
-            List<String> parents = latestCommit.getParent();
-            for (String parentID : parents) {
-                Commit parentCommit = Commit.fromFile(parentID);
-                if (seenCommit.contains(parentID)) {
-                    return parentCommit;
-                }
-                commitQue.add(parentCommit);
-                seenCommit.add(parentID);
-            }
-        }
+        CommitGraph graph = CommitGraph.get(currentHead.getCommitSHA1(),
+            branchHead.getCommitSHA1());
+        List<Integer> bases = graph.mergeBases(graph.indexOf(currentHead.getCommitSHA1()),
+            graph.indexOf(branchHead.getCommitSHA1()));
+        return Commit.fromFile(graph.id(bases.get(0)));
     }
 
-    private static String getConflict(String blobId1, String blobId2) {
-        StringBuilder conflictContent = new StringBuilder();
-        conflictContent.append("<<<<<<< HEAD").append("\n");
-        if (blobId1 != null) {
-            Blob blob1 = Blob.fromFile(blobId1);
-            conflictContent.append(blob1.pullContentsAsString());
-
-        }
-        conflictContent.append("=======").append("\n");
-        if (blobId2 != null) {
-            Blob blob2 = Blob.fromFile(blobId2);
-            conflictContent.append(blob2.pullContentsAsString());
+    /**
+     * Write to FILE the line by line merge of the changes the current and the given branch made
+     * to the split point version, see LineMerge. Each of BASEID, CURRENTID and BRANCHID is the
+     * blob id of that version, or null if it does not have the file.
+     *
+     * @return true if the merged file has conflicts
+     */
+    private static boolean writeMerged(File file, String baseId, String currentId,
+        String branchId) {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()),
+            BUFFER_SIZE)) {
+            return LineMerge.merge(readBlob(baseId), readBlob(currentId), readBlob(branchId), out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        conflictContent.append(">>>>>>>").append("\n");
-        return conflictContent.toString();
     }
 
 }
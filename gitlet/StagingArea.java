@@ -2,75 +2,218 @@ package gitlet;
 
 
 import java.io.File;
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
-import static gitlet.Utils.*;
+/**
+ * The staging area: files staged for addition and for removal, and the stat cache of the working
+ * files, kept in the IndexFile .gitlet/index. Single paths are looked up in the index file as
+ * needed, and only the entries changed since it was opened are written back on save, so staging
+ * one file does not read or rewrite the whole index.
+ */
+public class StagingArea {
 
-public class StagingArea implements Serializable {
+    /**
+     * the index file this staging area was read from, or null if there was none
+     */
+    private IndexFile index;
 
     /**
-     * Map<filepath, sha1></>file in the staging area, and sha1 based on content
+     * entries changed since the index file was opened, by file path
      */
-    private final Map<String, String> addedStagingFile = new HashMap<>();
+    private final Map<String, IndexFile.Entry> changes = new HashMap<>();
 
     /**
-     * remove file path (key in the map) from staging area once committed
+     * change to the number of staged paths made by changes
      */
-    private final Set<String> removedStagingFile = new HashSet<>();
+    private int stagedDelta;
 
     /**
-     * tracked files map with file path as key and SHA1 as value
+     * the head commit, whose snapshot holds the tracked files
      */
-    private transient Map<String, String> tracked;
+    private Commit head;
 
-    public StagingArea(Map<String, String> tracked) {
-        this.tracked = tracked;
+    /**
+     * while writes are deferred, the last saved staging area, which stands in for the file Index
+     */
+    private static StagingArea held;
+
+    private static boolean deferring;
+
+    /**
+     * whether held has been saved since the file Index was last written
+     */
+    private static boolean dirty;
+
+    public StagingArea(Commit head) {
+        this.head = head;
     }
 
     public StagingArea() {
     }
 
-    public void setTracked(Map<String, String> tracked) {
-        this.tracked = tracked;
+    public void setHead(Commit head) {
+        this.head = head;
     }
 
 
     /**
-     * save this instance to the file Index
+     * save this instance to the file Index, or only in memory while writes are deferred
      */
     public void saveStaging() {
-        writeObject(Repository.INDEX, this);
+        if (deferring) {
+            held = copy();
+            dirty = true;
+        } else {
+            write();
+        }
+    }
+
+    /**
+     * Write the changed entries to the file Index, appended or with the whole index rewritten.
+     */
+    private synchronized void write() {
+        if (index == null) {
+            TreeMap<String, IndexFile.Entry> entries = new TreeMap<>(changes);
+            entries.values().removeIf(IndexFile.Entry::isEmpty);
+            index = IndexFile.write(Repository.INDEX, entries);
+        } else {
+            index = index.save(Repository.INDEX, changes);
+        }
+        changes.clear();
+        stagedDelta = 0;
     }
 
     /**
-     * Get a StagingArea instance from the file index
+     * Get a StagingArea instance from the file index. While writes are deferred this is a copy
+     * of the last saved one, so changes made by a command that does not save are dropped just as
+     * they would be without deferring.
      *
      * @return StagingArea instance
      */
     public static StagingArea fromFile() {
-        return readObject(Repository.INDEX, StagingArea.class);
+        if (held != null) {
+            return held.copy();
+        }
+        StagingArea stagingArea = new StagingArea();
+        stagingArea.index = IndexFile.open(Repository.INDEX);
+        if (deferring) {
+            held = stagingArea.copy();
+        }
+        return stagingArea;
+    }
+
+    /**
+     * Tell whether a staging area has been saved, to the file Index or in memory.
+     */
+    public static boolean exists() {
+        return held != null || Repository.INDEX.exists();
+    }
+
+    /**
+     * Tell whether saved staging areas are being kept in memory.
+     */
+    public static boolean isDeferring() {
+        return deferring;
+    }
+
+    /**
+     * Keep saved staging areas in memory until flushStaging or stopDeferring.
+     */
+    public static void deferWrites() {
+        deferring = true;
+    }
+
+    /**
+     * Write the staging area saved in memory, if any, to the file Index.
+     */
+    public static void flushStaging() {
+        if (dirty) {
+            held.write();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Flush and go back to writing the file Index on every save.
+     */
+    public static void stopDeferring() {
+        flushStaging();
+        dropDeferred();
+    }
+
+    /**
+     * Go back to writing the file Index on every save, dropping what was kept in memory.
+     */
+    public static void dropDeferred() {
+        deferring = false;
+        dirty = false;
+        held = null;
+    }
+
+    /**
+     * a staging area with the same entries, sharing the index file, which is never changed in
+     * place
+     */
+    private synchronized StagingArea copy() {
+        StagingArea copy = new StagingArea(head);
+        copy.index = index;
+        copy.changes.putAll(changes);
+        copy.stagedDelta = stagedDelta;
+        return copy;
+    }
+
+    /**
+     * the entry of FILEPATH, empty if there is none
+     */
+    private synchronized IndexFile.Entry entry(String filePath) {
+        IndexFile.Entry entry = changes.get(filePath);
+        if (entry == null) {
+            entry = index == null ? IndexFile.Entry.EMPTY : index.get(filePath);
+        }
+        return entry;
+    }
+
+    private synchronized void setEntry(String filePath, IndexFile.Entry entry) {
+        IndexFile.Entry previous = entry(filePath);
+        stagedDelta += (entry.isStaged() ? 1 : 0) - (previous.isStaged() ? 1 : 0);
+        changes.put(filePath, entry);
+    }
+
+    /**
+     * every entry that is not empty, by file path
+     */
+    private synchronized Map<String, IndexFile.Entry> entries() {
+        Map<String, IndexFile.Entry> entries = index == null ? new TreeMap<>() : index.entries();
+        entries.putAll(changes);
+        entries.values().removeIf(IndexFile.Entry::isEmpty);
+        return entries;
     }
 
     /**
      * Perform a commit. add everything from addedStagingFiles, and remove everything mentioned in
      * removedStagingFile
      *
-     * @return return a new Map of <filePath, SHA1></>
+     * @return the changes to apply to the head snapshot, as a Map of <relative path, SHA1></>
+     *     with a null SHA1 for a removed file
      */
 
     public Map<String, String> commit() {
-        if (!isClean()) {
-            tracked.putAll(addedStagingFile);
-            for (String filePath : removedStagingFile) {
-                tracked.remove(filePath);
+        Map<String, String> staged = new HashMap<>();
+        for (Map.Entry<String, IndexFile.Entry> entry : entries().entrySet()) {
+            if (entry.getValue().isStaged()) {
+                staged.put(Repository.relativePath(entry.getKey()),
+                    entry.getValue().getBlobId());
             }
-            clear();
         }
-        return tracked;
+        clear();
+        return staged;
     }
 
     /**
@@ -81,19 +224,59 @@ public class StagingArea implements Serializable {
      */
     public boolean remove(File file) {
         String filePath = file.getPath();
-        String blobIdToRemove = addedStagingFile.remove(filePath);
-        if (blobIdToRemove != null) {
+        IndexFile.Entry entry = entry(filePath);
+        if (entry.isAdded()) {
+            setEntry(filePath, entry.unstaged());
             return true;
         }
-        if (tracked.get(filePath) != null) {
+        if (head.getBlobId(filePath) != null) {
             if (file.exists()) {
                 file.delete();
             }
-            return removedStagingFile.add(filePath);
+            if (entry.isRemoved()) {
+                return false;
+            }
+            setEntry(filePath, entry.removed());
+            return true;
         }
         return false;
     }
 
+    /**
+     * Get the blob id of the working file FILE. The file is only read and hashed if its stat
+     * data differs from what was recorded the last time it was hashed, or if that entry is
+     * racily clean; the new entry is kept for the next call and saved with the staging area.
+     * Safe to call from several threads at once; the hashing itself runs outside the lock.
+     *
+     * @return blob id of the current content
+     */
+    public String hashFile(File file) {
+        String filePath = file.getPath();
+        FileStat current = FileStat.of(file, null);
+        FileStat cached = entry(filePath).getStat();
+        if (cached != null && cached.matches(current)) {
+            return cached.getBlobId();
+        }
+        String blobID = Blob.generateBlobSHA1(file);
+        if (current != null) {
+            synchronized (this) {
+                setEntry(filePath, entry(filePath).withStat(current.withBlobId(blobID)));
+            }
+        }
+        return blobID;
+    }
+
+    /**
+     * Forget the recorded stat data of files that no longer exist.
+     */
+    public synchronized void pruneStatCache() {
+        for (Map.Entry<String, IndexFile.Entry> entry : entries().entrySet()) {
+            if (entry.getValue().getStat() != null && !new File(entry.getKey()).isFile()) {
+                setEntry(entry.getKey(), entry.getValue().withStat(null));
+            }
+        }
+    }
+
     /**
      * Add the file to Staging area if not in Tracked && newly staged
      *
@@ -101,38 +284,51 @@ public class StagingArea implements Serializable {
      * @return return true if the staging area is changed
      */
     public boolean add(File file) {
-        String filePath = file.getPath();
-        Blob blob = new Blob(file);
-        String blobID = blob.getBlobSHA1();
-        if (inRemoved(filePath, blobID, tracked, removedStagingFile)) {
-            return true;
-        }
-        if (inTracked(filePath, blobID, tracked)) {
-            return false;
+        return addAll(List.of(file));
+    }
+
+    /**
+     * Add each of FILES as add(file) would. The files are hashed in parallel first, and the
+     * blobs of the newly staged ones are then saved in parallel.
+     *
+     * @return return true if the staging area is changed
+     */
+    public boolean addAll(List<File> files) {
+        Map<String, String> blobIDs = Repository.hashFiles(files, this);
+        List<Runnable> saves = new ArrayList<>();
+        boolean changed = false;
+        for (File file : files) {
+            String filePath = file.getPath();
+            String blobID = blobIDs.get(filePath);
+            String trackedBlobID = head.getBlobId(filePath);
+            if (inRemoved(filePath, blobID, trackedBlobID)) {
+                changed = true;
+            } else if (!inTracked(blobID, trackedBlobID)) {
+                changed |= ifNew(filePath, blobID, file, trackedBlobID, saves);
+            }
         }
-        return ifNew(filePath, blobID, addedStagingFile, blob);
+        saves.parallelStream().forEach(Runnable::run);
+        return changed;
     }
 
     /**
      * determine if we have committed the same file before
      *
      * @return return True if the file is not found in tracked
-     * @params filePath, blobID, Map
+     * @params blobID, trackBlobId of the same path in the head commit
      */
-    private boolean inTracked(String filePath, String blobID, Map<String, String> trackedMap) {
-        String trackBlobId = trackedMap.get(filePath);
+    private boolean inTracked(String blobID, String trackBlobId) {
         if (trackBlobId != null && trackBlobId.equals(blobID)) {
             return true;
         }
         return false;
     }
 
-    private boolean inRemoved(String filePath, String newBlobId, Map<String, String> trackedMap,
-        Set<String> removed) {
-        if (removed.contains(filePath)) {
-            String blobId = trackedMap.get(filePath);
-            if (newBlobId.equals(blobId)) {
-                removed.remove(filePath);
+    private boolean inRemoved(String filePath, String newBlobId, String trackBlobId) {
+        IndexFile.Entry entry = entry(filePath);
+        if (entry.isRemoved()) {
+            if (newBlobId.equals(trackBlobId)) {
+                setEntry(filePath, entry.unstaged());
                 return true;
             }
         }
@@ -142,15 +338,17 @@ public class StagingArea implements Serializable {
     /**
      * determine if the file is new to the staging area
      *
-     * @return true if the file is new
+     * @return true if the file is new; its blob is then saved by one of SAVES
      */
-    private boolean ifNew(String filePath, String blobID, Map<String, String> staged,
-        Blob blob) {
-        String prevBlobID = staged.put(filePath, blobID);
-        if (prevBlobID != null && prevBlobID.equals(blobID)) {
+    private boolean ifNew(String filePath, String blobID, File file, String trackBlobId,
+        List<Runnable> saves) {
+        IndexFile.Entry entry = entry(filePath);
+        if (entry.isAdded() && entry.getBlobId().equals(blobID)) {
             return false;
         }
-        blob.saveBlob();
+        setEntry(filePath, entry.added(blobID));
+        Blob blob = new Blob(file, blobID);
+        saves.add(() -> blob.saveBlob(trackBlobId));
         return true;
     }
 
@@ -160,27 +358,62 @@ public class StagingArea implements Serializable {
      *
      * @return return true if clean
      */
-    public boolean isClean() {
-        return addedStagingFile.isEmpty() && removedStagingFile.isEmpty();
+    public synchronized boolean isClean() {
+        return (index == null ? 0 : index.stagedCount()) + stagedDelta == 0;
     }
 
     /**
      * clear the staging area
      */
-    public void clear() {
-        addedStagingFile.clear();
-        removedStagingFile.clear();
+    public synchronized void clear() {
+        for (Map.Entry<String, IndexFile.Entry> entry : entries().entrySet()) {
+            if (entry.getValue().isStaged()) {
+                setEntry(entry.getKey(), entry.getValue().unstaged());
+            }
+        }
+    }
+
+    /**
+     * the blob staged for addition at FILEPATH, or null if it is not staged for addition
+     */
+    public String getStagedBlobId(String filePath) {
+        return entry(filePath).getBlobId();
     }
 
+    /**
+     * Tell whether FILEPATH is staged for removal.
+     */
+    public boolean isStagedForRemoval(String filePath) {
+        return entry(filePath).isRemoved();
+    }
+
+    /**
+     * a new map of each file path staged for addition to its blob id
+     */
     public Map<String, String> getAddedStagingFile() {
-        return addedStagingFile;
+        Map<String, String> added = new HashMap<>();
+        for (Map.Entry<String, IndexFile.Entry> entry : entries().entrySet()) {
+            if (entry.getValue().isAdded()) {
+                added.put(entry.getKey(), entry.getValue().getBlobId());
+            }
+        }
+        return Collections.unmodifiableMap(added);
     }
 
+    /**
+     * a new set of the file paths staged for removal
+     */
     public Set<String> getRemovedStagingFile() {
-        return removedStagingFile;
+        Set<String> removed = new HashSet<>();
+        for (Map.Entry<String, IndexFile.Entry> entry : entries().entrySet()) {
+            if (entry.getValue().isRemoved()) {
+                removed.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(removed);
     }
 
-    public Map<String, String> getTracked() {
-        return tracked;
+    public Commit getHead() {
+        return head;
     }
 }
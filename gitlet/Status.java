@@ -4,9 +4,14 @@ import static gitlet.StagingArea.*;
 import static gitlet.Repository.*;
 
 
-import java.nio.file.Paths;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class Status {
 
@@ -25,12 +30,39 @@ public class Status {
         getStagedRemovedStatus(stagingArea);
         System.out.println();
 
-        System.out.println("=== Modifications Not Staged For Commit ===");
-        System.out.println();
-
-        System.out.println("=== Untracked Files ===");
-        System.out.println();
+        Map<String, String> tracked = stagingArea.getHead().getTracked();
+        WorkingTree workingTree = new WorkingTree(stagingArea);
+        Set<String> cwdFiles = workingTree.paths();
+        Map<String, String> cwdBlobs = workingTree.blobIds(modificationCandidates(stagingArea,
+            tracked, cwdFiles));
+        stagingArea.saveStaging(); // keep the stat data of the files just hashed
+
+        StringBuilder status = new StringBuilder();
+        status.append("=== Modifications Not Staged For Commit ===\n");
+        getNotStagedStatus(status, stagingArea, tracked, cwdBlobs);
+        status.append("\n");
+
+        status.append("=== Untracked Files ===\n");
+        getNotTrackedStatus(status, stagingArea, tracked, cwdFiles);
+        status.append("\n");
+        System.out.print(status);
+    }
 
+    /**
+     * the files in CWD whose content has to be compared: those staged for addition and those
+     * tracked and not staged for removal
+     */
+    private static List<String> modificationCandidates(StagingArea stagingArea,
+        Map<String, String> tracked, Set<String> cwdFiles) {
+        List<String> candidates = new ArrayList<>();
+        for (String filePath : cwdFiles) {
+            if (stagingArea.getStagedBlobId(filePath) != null
+                || (tracked.containsKey(filePath)
+                && !stagingArea.isStagedForRemoval(filePath))) {
+                candidates.add(filePath);
+            }
+        }
+        return candidates;
     }
 
     private static void getBranchesStatus() {
@@ -38,6 +70,7 @@ public class Status {
         if (branches == null) {
             return;
         }
+        Arrays.sort(branches);
         for (String branch : branches) {
             if (getHeadBranchName().equals(branch)) {
                 System.out.println("*" + branch);
@@ -49,22 +82,69 @@ public class Status {
 
     private static void getStagedAddedStatus(StagingArea stagingArea) {
         Map<String, String> added = stagingArea.getAddedStagingFile();
-        for (String filePath : added.keySet()) {
-            System.out.println(Paths.get(filePath).getFileName().toString());
+        for (String filePath : new TreeSet<>(added.keySet())) {
+            System.out.println(relativePath(filePath));
         }
     }
 
     private static void getStagedRemovedStatus(StagingArea stagingArea) {
         Set<String> removed = stagingArea.getRemovedStagingFile();
-        for (String filePath : removed) {
-            System.out.println(Paths.get(filePath).getFileName().toString());
+        for (String filePath : new TreeSet<>(removed)) {
+            System.out.println(relativePath(filePath));
+        }
+    }
+
+    /**
+     * Append the files staged for addition or tracked in the head commit whose working copy was
+     * changed or deleted without staging it, as "name (modified)" or "name (deleted)".
+     * cwdBlobs holds the current blob id of every such file still in CWD.
+     */
+    private static void getNotStagedStatus(StringBuilder status, StagingArea stagingArea,
+        Map<String, String> tracked, Map<String, String> cwdBlobs) {
+        Map<String, String> added = stagingArea.getAddedStagingFile();
+        Set<String> removed = stagingArea.getRemovedStagingFile();
+        Map<String, String> modifications = new TreeMap<>();
+        for (Map.Entry<String, String> entry : added.entrySet()) {
+            noteModification(modifications, entry.getKey(), entry.getValue(), cwdBlobs);
+        }
+        for (Map.Entry<String, String> entry : tracked.entrySet()) {
+            String filePath = entry.getKey();
+            if (!added.containsKey(filePath) && !removed.contains(filePath)) {
+                noteModification(modifications, filePath, entry.getValue(), cwdBlobs);
+            }
+        }
+        for (Map.Entry<String, String> entry : modifications.entrySet()) {
+            status.append(entry.getKey()).append(" (").append(entry.getValue()).append(")\n");
         }
     }
 
-    private static void getNotStagedStatus(StringBuilder status) {
+    private static void noteModification(Map<String, String> modifications, String filePath,
+        String expectedBlobId, Map<String, String> cwdBlobs) {
+        String blobId = cwdBlobs.get(filePath);
+        if (blobId == null && !new File(filePath).isFile()) {
+            modifications.put(relativePath(filePath), "deleted");
+        } else if (blobId != null && !blobId.equals(expectedBlobId)) {
+            modifications.put(relativePath(filePath), "modified");
+        }
     }
 
-    private static void getNotTrackedStatus(StringBuilder status) {
+    /**
+     * Append the files in CWD that are neither staged for addition nor tracked, including
+     * tracked files that were staged for removal and then created again.
+     */
+    private static void getNotTrackedStatus(StringBuilder status, StagingArea stagingArea,
+        Map<String, String> tracked, Set<String> cwdFiles) {
+        Set<String> untracked = new TreeSet<>();
+        for (String filePath : cwdFiles) {
+            if (stagingArea.getStagedBlobId(filePath) == null
+                && (!tracked.containsKey(filePath)
+                || stagingArea.isStagedForRemoval(filePath))) {
+                untracked.add(relativePath(filePath));
+            }
+        }
+        for (String name : untracked) {
+            status.append(name).append("\n");
+        }
     }
 
 }
@@ -0,0 +1,258 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.AdditionalUtils.*;
+import static gitlet.Utils.*;
+
+/**
+ * Represents one directory of a commit snapshot. A tree maps each name in the directory to either
+ * a blob id (a file) or the id of another tree (a subdirectory), and is itself stored as an object
+ * addressed by the SHA1 of its content. Unchanged directories therefore keep their ids from one
+ * commit to the next and are shared instead of being rewritten, and two snapshots can be compared
+ * by skipping every subtree whose id is the same on both sides.
+ *
+ * <p>Paths inside trees are relative to the working directory and use '/' as separator. The
+ * payload is one line per entry, "blob ID NAME" for the files and then "tree ID NAME" for the
+ * subdirectories, each group sorted by name.
+ *
+ * @author Jialin Shi
+ */
+class Tree {
+
+    /**
+     * header type tag of a tree object
+     */
+    static final String TREE_TYPE = "tree";
+
+    /**
+     * trees already read in this run; tree objects never change once written
+     */
+    private static final ObjectCache<Tree> CACHE = new ObjectCache<>(16L << 20, Tree::weight);
+
+    /**
+     * name of each file in this directory mapped to its blob id
+     */
+    private final TreeMap<String, String> blobs = new TreeMap<>();
+
+    /**
+     * name of each subdirectory mapped to its tree id
+     */
+    private final TreeMap<String, String> trees = new TreeMap<>();
+
+    /**
+     * rough number of bytes this tree takes in memory
+     */
+    private long weight() {
+        long weight = 128;
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            weight += 160 + 2L * entry.getKey().length();
+        }
+        for (Map.Entry<String, String> entry : trees.entrySet()) {
+            weight += 160 + 2L * entry.getKey().length();
+        }
+        return weight;
+    }
+
+    private byte[] encode() {
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            payload.append(Blob.BLOB_TYPE).append(' ').append(entry.getValue()).append(' ')
+                .append(entry.getKey()).append('\n');
+        }
+        for (Map.Entry<String, String> entry : trees.entrySet()) {
+            payload.append(TREE_TYPE).append(' ').append(entry.getValue()).append(' ')
+                .append(entry.getKey()).append('\n');
+        }
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Save this tree unless an identical one is already stored.
+     *
+     * @return the id of this tree
+     */
+    private String save() {
+        byte[] payload = encode();
+        String id = sha1(LooseObject.header(TREE_TYPE, payload.length), payload);
+        File file = getTreeFile(id);
+        if (!WriteBatch.exists(file) && !PackFile.contains(id)) {
+            saveObject(file, TREE_TYPE, payload);
+        }
+        CACHE.put(id, this);
+        return id;
+    }
+
+    /**
+     * Read the tree with ID, loose or packed.
+     */
+    static Tree fromFile(String id) {
+        Tree tree = CACHE.get(id);
+        if (tree != null) {
+            return tree;
+        }
+        byte[] payload;
+        try (LooseObject object = LooseObject.find(id, getTreeFile(id), TREE_TYPE)) {
+            if (object == null) {
+                throw error("Missing tree %s.", id);
+            }
+            payload = object.getStream().readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        tree = new Tree();
+        for (String line : new String(payload, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(" ", 3);
+            if (fields[0].equals(TREE_TYPE)) {
+                tree.trees.put(fields[2], fields[1]);
+            } else {
+                tree.blobs.put(fields[2], fields[1]);
+            }
+        }
+        CACHE.put(id, tree);
+        return tree;
+    }
+
+    /**
+     * Save the empty tree, the snapshot of the initial commit.
+     *
+     * @return its id
+     */
+    static String empty() {
+        return new Tree().save();
+    }
+
+    /**
+     * Build the tree that results from applying CHANGES to the tree ROOTID. CHANGES maps relative
+     * paths to their new blob id, or to null for a path that is removed. Only the directories on
+     * the changed paths are read and written; every other subtree keeps its id. Directories left
+     * empty are dropped.
+     *
+     * @return the id of the new root tree
+     */
+    static String updateRoot(String rootId, Map<String, String> changes) {
+        String id = update(rootId, changes);
+        return id == null ? empty() : id;
+    }
+
+    /**
+     * apply the CHANGES, relative to one directory, to its tree ID (null for a missing directory)
+     *
+     * @return the id of the new tree, or null if it is empty
+     */
+    private static String update(String id, Map<String, String> changes) {
+        Tree old = id == null ? new Tree() : fromFile(id);
+        Tree tree = new Tree();
+        tree.blobs.putAll(old.blobs);
+        tree.trees.putAll(old.trees);
+        Map<String, Map<String, String>> subChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    tree.blobs.remove(path);
+                } else {
+                    tree.blobs.put(path, change.getValue());
+                }
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                    .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> sub : subChanges.entrySet()) {
+            String name = sub.getKey();
+            String subId = update(old.trees.get(name), sub.getValue());
+            if (subId == null) {
+                tree.trees.remove(name);
+            } else {
+                tree.trees.put(name, subId);
+            }
+        }
+        if (tree.blobs.isEmpty() && tree.trees.isEmpty()) {
+            return null;
+        }
+        return tree.save();
+    }
+
+    /**
+     * Find the blob id of the relative PATH in the tree ROOTID, reading only the trees along it.
+     *
+     * @return the blob id, or null if the snapshot has no such file
+     */
+    static String lookup(String rootId, String path) {
+        Tree tree = fromFile(rootId);
+        int slash;
+        while ((slash = path.indexOf('/')) >= 0) {
+            String subId = tree.trees.get(path.substring(0, slash));
+            if (subId == null) {
+                return null;
+            }
+            tree = fromFile(subId);
+            path = path.substring(slash + 1);
+        }
+        return tree.blobs.get(path);
+    }
+
+    /**
+     * Map every file of the snapshot ROOTID, by relative path, to its blob id.
+     */
+    static Map<String, String> flatten(String rootId) {
+        Map<String, String> files = new HashMap<>();
+        flatten(rootId, "", files);
+        return files;
+    }
+
+    private static void flatten(String id, String prefix, Map<String, String> files) {
+        Tree tree = fromFile(id);
+        for (Map.Entry<String, String> entry : tree.blobs.entrySet()) {
+            files.put(prefix + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : tree.trees.entrySet()) {
+            flatten(entry.getValue(), prefix + entry.getKey() + "/", files);
+        }
+    }
+
+    /**
+     * Compare the snapshots A and B (either may be null for an empty snapshot), descending only
+     * into subtrees whose ids differ.
+     *
+     * @return every relative path whose blob differs, mapped to {blob in A, blob in B} with null
+     *     for a side that does not have the file
+     */
+    static Map<String, String[]> diff(String a, String b) {
+        Map<String, String[]> changes = new TreeMap<>();
+        diff(a, b, "", changes);
+        return changes;
+    }
+
+    private static void diff(String a, String b, String prefix, Map<String, String[]> changes) {
+        if (a != null && a.equals(b)) {
+            return;
+        }
+        Tree treeA = a == null ? new Tree() : fromFile(a);
+        Tree treeB = b == null ? new Tree() : fromFile(b);
+        TreeMap<String, String> names = new TreeMap<>(treeA.blobs);
+        names.putAll(treeB.blobs);
+        for (String name : names.keySet()) {
+            String blobA = treeA.blobs.get(name);
+            String blobB = treeB.blobs.get(name);
+            if (blobA == null || !blobA.equals(blobB)) {
+                changes.put(prefix + name, new String[]{blobA, blobB});
+            }
+        }
+        TreeMap<String, String> dirs = new TreeMap<>(treeA.trees);
+        dirs.putAll(treeB.trees);
+        for (String name : dirs.keySet()) {
+            diff(treeA.trees.get(name), treeB.trees.get(name), prefix + name + "/", changes);
+        }
+    }
+}
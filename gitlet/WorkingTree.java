@@ -0,0 +1,108 @@
+package gitlet;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A snapshot of the working directory taken once per command and shared by every check that
+ * command makes. The directory is listed when the snapshot is taken; blob ids and stat data are
+ * computed on first use, through the stat cache of the staging area, and then remembered. Files
+ * in subdirectories are listed too, as add can track them, so the safety checks and status see
+ * every file a command could overwrite or report.
+ *
+ * @author Jialin Shi
+ */
+class WorkingTree {
+
+    private final StagingArea stagingArea;
+
+    /**
+     * files in CWD and its subdirectories, by path
+     */
+    private final Map<String, File> files = new TreeMap<>();
+
+    private final Map<String, String> blobIds = new ConcurrentHashMap<>();
+
+    private final Map<String, FileStat> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Take a snapshot of CWD, hashing files through the stat cache of STAGINGAREA.
+     */
+    WorkingTree(StagingArea stagingArea) {
+        this.stagingArea = stagingArea;
+        for (File file : Repository.getCWDFiles()) {
+            files.put(file.getPath(), file);
+        }
+    }
+
+    /**
+     * the paths of the files in CWD and its subdirectories, sorted
+     */
+    Set<String> paths() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    /**
+     * the file at PATH, or null if there is no regular file there
+     */
+    private File file(String path) {
+        File file = files.get(path);
+        if (file == null) {
+            file = new File(path);
+            if (!file.isFile()) {
+                return null;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * the blob id of the file at PATH, or null if there is no such file
+     */
+    String blobId(String path) {
+        String blobId = blobIds.get(path);
+        if (blobId == null) {
+            File file = file(path);
+            if (file == null) {
+                return null;
+            }
+            blobId = stagingArea.hashFile(file);
+            blobIds.put(path, blobId);
+        }
+        return blobId;
+    }
+
+    /**
+     * Get the blob ids of the files at PATHS, hashing those not known yet in parallel.
+     *
+     * @return the blob id of each path that holds a file
+     */
+    Map<String, String> blobIds(Collection<String> paths) {
+        paths.parallelStream().forEach(this::blobId);
+        Map<String, String> result = new HashMap<>();
+        for (String path : paths) {
+            String blobId = blobIds.get(path);
+            if (blobId != null) {
+                result.put(path, blobId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * the stat data of the file at PATH, or null if there is no such file
+     */
+    FileStat stat(String path) {
+        File file = file(path);
+        if (file == null) {
+            return null;
+        }
+        return stats.computeIfAbsent(path, p -> FileStat.of(file, null));
+    }
+}
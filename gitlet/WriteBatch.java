@@ -0,0 +1,292 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Makes the repository changes of one command durable together. While a batch is open, new
+ * objects and ref updates are written to temporary files in .gitlet/tmp instead of their final
+ * paths, and the index is held in memory; reads of those paths are served from the temporary
+ * files. Committing the batch then
+ * <ol>
+ *     <li>syncs every temporary file, all at once,</li>
+ *     <li>renames the objects into place and syncs each directory they went to,</li>
+ *     <li>updates the commit journal, commit graph and message index,</li>
+ *     <li>renames the refs into place and syncs their directories, and</li>
+ *     <li>writes the index.</li>
+ * </ol>
+ * Each file is synced once and each directory once, instead of a sync per write, and a crash at
+ * any point leaves either the old ref or a new one whose objects are all on disk. The index goes
+ * last, so a crash before it is written leaves at worst an index that still shows the changes
+ * just committed as staged, never staged changes lost under an old ref.
+ *
+ * <p>Writes may come from several threads at once, as add saves blobs in parallel, so the
+ * methods that touch the open batch hold the class lock.
+ *
+ * <p>Outside a batch the same writes are published, and made durable, one by one.
+ *
+ * @author Jialin Shi
+ */
+class WriteBatch {
+
+    /**
+     * the batch of the running command, or null
+     */
+    private static WriteBatch current;
+
+    /**
+     * temporary file of each object to publish, by final path
+     */
+    private final Map<File, File> objects = new LinkedHashMap<>();
+
+    /**
+     * temporary file of each ref to publish, by final path
+     */
+    private final Map<File, File> refs = new LinkedHashMap<>();
+
+    /**
+     * updates to run once the objects are in place
+     */
+    private final List<Runnable> afterObjects = new ArrayList<>();
+
+    /**
+     * whether this batch holds the index in memory, which Batch may already be doing
+     */
+    private final boolean defersStaging;
+
+    private WriteBatch() {
+        defersStaging = !StagingArea.isDeferring();
+        if (defersStaging) {
+            StagingArea.deferWrites();
+        }
+    }
+
+    /**
+     * Run COMMAND in a new batch and commit it, also when the command ends with a user error. A
+     * batch already open is used as it is.
+     */
+    static void run(Runnable command) {
+        if (current != null) {
+            command.run();
+            return;
+        }
+        current = new WriteBatch();
+        boolean committed = false;
+        try {
+            try {
+                command.run();
+            } catch (GitletException excp) {
+                current.commit();
+                committed = true;
+                throw excp;
+            }
+            current.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                current.abort();
+            }
+            current = null;
+        }
+    }
+
+    /**
+     * Publish what has been written so far, keeping the batch open.
+     */
+    static void checkpoint() {
+        if (current != null) {
+            current.commit();
+            if (current.defersStaging) {
+                StagingArea.deferWrites();
+            }
+        }
+    }
+
+    /**
+     * a new empty temporary file, to be published with publish
+     */
+    static File tempFile() {
+        File folder = Repository.TMPFOLDER;
+        if (!folder.exists()) {
+            folder.mkdir();
+        }
+        try {
+            return File.createTempFile("write", ".tmp", folder);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Publish the object written to TEMP as TARGET, replacing it if it exists.
+     */
+    static synchronized void publish(File temp, File target) {
+        if (current == null) {
+            replace(temp, target);
+            return;
+        }
+        File previous = current.objects.put(target, temp);
+        if (previous != null) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Write CONTENTS to the ref file REF.
+     */
+    static void writeRef(File ref, String contents) {
+        File temp = tempFile();
+        writeContents(temp, contents);
+        publishRef(temp, ref);
+    }
+
+    private static synchronized void publishRef(File temp, File ref) {
+        if (current == null) {
+            replace(temp, ref);
+            return;
+        }
+        File previous = current.refs.put(ref, temp);
+        if (previous != null) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Run UPDATE once the objects written so far are in place.
+     */
+    static synchronized void afterObjects(Runnable update) {
+        if (current == null) {
+            update.run();
+        } else {
+            current.afterObjects.add(update);
+        }
+    }
+
+    /**
+     * the file to read for FILE: the temporary file of a write not published yet, or FILE
+     */
+    static synchronized File resolve(File file) {
+        if (current == null) {
+            return file;
+        }
+        File temp = current.objects.get(file);
+        if (temp == null) {
+            temp = current.refs.get(file);
+        }
+        return temp == null ? file : temp;
+    }
+
+    /**
+     * Tell whether FILE exists, written by this batch or already published.
+     */
+    static boolean exists(File file) {
+        return resolve(file).exists();
+    }
+
+    private void commit() {
+        List<File> temps = new ArrayList<>(objects.values());
+        temps.addAll(refs.values());
+        temps.parallelStream().forEach(WriteBatch::force);
+        rename(objects);
+        List<Runnable> updates = new ArrayList<>(afterObjects);
+        afterObjects.clear();
+        for (Runnable update : updates) {
+            update.run();
+        }
+        rename(refs);
+        if (defersStaging) {
+            StagingArea.stopDeferring();
+        }
+    }
+
+    /**
+     * Move each temporary file of MOVES to its final path, then sync the directories.
+     */
+    private static void rename(Map<File, File> moves) {
+        Set<File> dirs = new LinkedHashSet<>();
+        Map<File, File> pending = new HashMap<>(moves);
+        moves.clear();
+        for (Map.Entry<File, File> move : pending.entrySet()) {
+            File dir = move.getKey().getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            move(move.getValue(), move.getKey());
+            dirs.add(dir);
+        }
+        dirs.parallelStream().forEach(WriteBatch::force);
+    }
+
+    /**
+     * Drop everything written in this batch.
+     */
+    private void abort() {
+        for (File temp : objects.values()) {
+            temp.delete();
+        }
+        for (File temp : refs.values()) {
+            temp.delete();
+        }
+        if (defersStaging) {
+            StagingArea.dropDeferred();
+        }
+    }
+
+    /**
+     * Durably replace TARGET with TEMP: sync TEMP, rename it atomically and sync the directory.
+     */
+    static void replace(File temp, File target) {
+        force(temp);
+        File dir = target.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        move(temp, target);
+        force(dir);
+    }
+
+    private static void move(File temp, File target) {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Sync FILE, a regular file or a directory, to the disk. Some platforms cannot sync a
+     * directory; that is ignored.
+     */
+    static void force(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), file.isDirectory()
+            ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * the contents of the ref file REF, as written by this batch or on disk
+     */
+    static String readRef(File ref) {
+        return new String(readContents(resolve(ref)), StandardCharsets.UTF_8);
+    }
+}
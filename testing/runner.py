@@ -1,12 +1,13 @@
 import sys, re
 from subprocess import \
-    check_output, PIPE, STDOUT, DEVNULL, CalledProcessError, TimeoutExpired
+    check_output, Popen, PIPE, STDOUT, DEVNULL, CalledProcessError, TimeoutExpired
 from os.path import abspath, basename, dirname, exists, join, splitext, isdir
 from getopt import getopt, GetoptError
 from os import chdir, environ, getcwd, mkdir, remove
 from shutil import copyfile, rmtree
 from math import log
 from glob import glob
+from time import sleep, time
 
 SHORT_USAGE = """\
 Usage: python3 runner.py OPTIONS TEST.in ...
@@ -59,6 +60,22 @@ The instructions each have one of the following forms:
           Python regular expressions and matched accordingly. The directory
           or JAR file containing the gitlet.Main program is assumed to be
           in directory DIR specifed by --progdir (default is ..).
+   @ COMMAND OPERANDS
+   LINE1
+   ...
+   <<<
+          As for ">", but run gitlet.Client, which hands the command to a
+          running daemon if there is one.
+   ~ COMMAND OPERANDS
+          Run COMMAND with gitlet.Main and then with gitlet.Client, and report
+          an error unless both give exactly the same output and exit code.
+          Meant for commands that do not change the repository.
+   & NAME COMMAND OPERANDS
+          Start gitlet.Main with COMMAND OPERANDS in the background, and wait
+          until the file NAME exists.  Background commands still running when
+          the test ends are killed.
+   < F    Use the contents of src/F as the standard input of the next ">"
+          or "@" command.
    = NAME F
           Check that the file named NAME is identical to src/F, and report an
           error if not.
@@ -110,6 +127,7 @@ That's what mine looks like. Go back to lab1 if you are still having issues"""
 
 JAVA_COMMAND = "java"
 CAPERS_COMMAND = "gitlet.Main"
+CLIENT_COMMAND = "gitlet.Client"
 JAVAC_COMMAND = "javac -d ."
 JVM_COMMAND = "-agentlib:jdwp=transport=dt_socket,server=y,suspend=y,address=*:5005"
 TIMEOUT = 10
@@ -164,9 +182,13 @@ def editDistance(s1, s2):
                              dist[i-1][j-1] + (s1[i-1] != s2[j-1]))
     return dist[len(s1)][len(s2)]
 
-def nextCommand(full_cmnd, timeout):
-    return check_output(full_cmnd, shell=True, universal_newlines=True,
-                        stdin=DEVNULL, stderr=STDOUT, timeout=timeout)
+def nextCommand(full_cmnd, timeout, stdin_file=None):
+    if stdin_file is None:
+        return check_output(full_cmnd, shell=True, universal_newlines=True,
+                            stdin=DEVNULL, stderr=STDOUT, timeout=timeout)
+    with open(stdin_file) as inp:
+        return check_output(full_cmnd, shell=True, universal_newlines=True,
+                            stdin=inp, stderr=STDOUT, timeout=timeout)
 def stepIntoCommand(full_cmnd):
     out = check_output(full_cmnd, shell=True, universal_newlines=True,
                        stdin=DEVNULL, stderr=STDOUT, timeout=None)
@@ -210,12 +232,25 @@ def doCompile(target):
         return ("javac exited with code {}".format(excp.args[0]),
                 excp.output)
 
-def doExecute(cmnd, dir, timeout):
+def doBackground(cmnd, ready, dir, timeout):
+    full_cmnd = "{} {} {}".format(JAVA_COMMAND, CAPERS_COMMAND, cmnd)
+    proc = Popen(full_cmnd, shell=True, cwd=dir, stdin=DEVNULL,
+                 stdout=DEVNULL, stderr=DEVNULL)
+    deadline = time() + timeout
+    while not exists(join(dir, ready)):
+        if proc.poll() is not None or time() > deadline:
+            return "background command did not start", proc
+        sleep(0.05)
+    return "OK", proc
+
+def doExecute(cmnd, dir, timeout, main_class=CAPERS_COMMAND, stdin_file=None):
     here = getcwd()
     out = ""
+    if stdin_file is not None:
+        stdin_file = abspath(join(src_dir, stdin_file))
     try:
         chdir(dir)
-        full_cmnd = "{} {} {}".format(JAVA_COMMAND, CAPERS_COMMAND, cmnd)
+        full_cmnd = "{} {} {}".format(JAVA_COMMAND, main_class, cmnd)
 
         if DEBUG:
             print(">>> gitlet {}".format(cmnd))
@@ -225,7 +260,7 @@ def doExecute(cmnd, dir, timeout):
                 next_cmd = input("> ").strip().lower()
 
             if next_cmd == "n":
-                out = nextCommand(full_cmnd, timeout)
+                out = nextCommand(full_cmnd, timeout, stdin_file)
             elif next_cmd == "s":
                 full_cmnd = "{} {} {} {}".format(JAVA_COMMAND, JVM_COMMAND, CAPERS_COMMAND, cmnd)
                 print(f"Ready to debug the command `gitlet {cmnd}`")
@@ -234,14 +269,14 @@ def doExecute(cmnd, dir, timeout):
             elif next_cmd == "q":
                 return "User Exit", None
         else:
-            out = nextCommand(full_cmnd, timeout)
+            out = nextCommand(full_cmnd, timeout, stdin_file)
 
         if superverbose:
             print(out)
 
         return "OK", out
     except CalledProcessError as excp:
-        return ("java gitlet.Main exited with code {}".format(excp.args[0]),
+        return ("java {} exited with code {}".format(main_class, excp.args[0]),
                 excp.output)
     except TimeoutExpired:
         return "timeout", None
@@ -330,6 +365,8 @@ def doTest(test):
         print("Testing directory: {}".format(tmpdir))
     timeout = TIMEOUT
     defns = {}
+    background = []
+    stdin_file = None
 
     def do_substs(L):
         c = 0
@@ -387,8 +424,28 @@ def doTest(test):
                 doCopy(Group(1), Group(2), cdir)
             elif Match(r'-\s*(\S+)', line):
                 doDelete(Group(1), cdir)
-            elif Match(r'>\s*(.*)', line):
+            elif Match(r'<\s*(\S+)', line):
+                stdin_file = Group(1)
+            elif Match(r'&\s*(\S+)\s+(.*)', line):
+                msg, proc = doBackground(Group(2), Group(1), cdir, timeout)
+                background.append(proc)
+                if msg != 'OK':
+                    print("ERROR ({})".format(msg))
+                    reportDetails(test, included_files, line_num)
+                    return False
+            elif Match(r'~\s*(.*)', line):
                 cmnd = Group(1)
+                direct = doExecute(cmnd, cdir, timeout)
+                client = doExecute(cmnd, cdir, timeout, CLIENT_COMMAND)
+                if verbose and direct[1]:
+                    print(re.sub(r'(?m)^', '- ', chop_nl(direct[1])))
+                if direct != client:
+                    print("ERROR (gitlet.Client output differs from gitlet.Main)")
+                    reportDetails(test, included_files, line_num)
+                    return False
+            elif Match(r'([>@])\s*(.*)', line):
+                main_class = CLIENT_COMMAND if Group(1) == '@' else CAPERS_COMMAND
+                cmnd = Group(2)
                 expected = []
                 while True:
                     line_num, L = next(inp, (line_num, ''))
@@ -400,7 +457,9 @@ def doTest(test):
                         is_regexp = Group(1)
                         break
                     expected.append(do_substs(L))
-                msg, out = doExecute(cmnd, cdir, timeout)
+                msg, out = doExecute(cmnd, cdir, timeout, main_class,
+                                     stdin_file)
+                stdin_file = None
                 if verbose:
                     if out:
                         print(re.sub(r'(?m)^', '- ', chop_nl(out)))
@@ -437,6 +496,10 @@ def doTest(test):
             else:
                 raise ValueError("bad test line at {}".format(line_num))
     finally:
+        for proc in background:
+            if proc.poll() is None:
+                proc.kill()
+            proc.wait()
         if not keep:
             cleanTempDir(tmpdir)
         else: